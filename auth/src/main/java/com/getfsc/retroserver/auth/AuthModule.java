@@ -19,10 +19,10 @@ public class AuthModule {
     @GlobalAop
     @Provides(type = Provides.Type.SET)
     AopFactory authAopFactory() {
-        return () -> request -> {
+        return AopFactory.stateless(request -> {
             request.setObject(LoginProvider.class, new LoginProvider(request));
             return true;
-        };
+        });
     }
 
 
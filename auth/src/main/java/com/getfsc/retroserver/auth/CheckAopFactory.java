@@ -22,13 +22,13 @@ class CheckAopFactory implements AopFactory {
         return "AuthCheck";
     }
 
-
-    private HttpResponseStatus status = HttpResponseStatus.OK;
-    private String message = "";
-
     @Override
     public AopInterceptor create() {
         return new AopInterceptor() {
+            // per request, afterInvoke runs for every request and must only see this one's refusal
+            private HttpResponseStatus status = HttpResponseStatus.OK;
+            private String message = "";
+
             @Override
             public boolean beforeInvoke(ServerRequest request) {
 
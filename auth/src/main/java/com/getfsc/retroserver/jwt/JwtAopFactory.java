@@ -9,7 +9,6 @@ import com.getfsc.retroserver.util.H;
 import io.jsonwebtoken.*;
 
 import javax.inject.Inject;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -24,14 +23,14 @@ public class JwtAopFactory implements AopFactory {
 
     private static final String PREFIX = "Bearer ";
 
-    private JwtParser jwtParser;
+    private JwtVerifier verifier;
     private JwtOptions options;
 
 
     @Inject
     public JwtAopFactory(JwtOptions options) {
         this.options = options;
-        jwtParser = Jwts.parser().setSigningKey(options.jwtSecret());
+        verifier = new JwtVerifier(options.jwtSecret(), options.jwtCacheSize());
     }
 
     @Override
@@ -61,9 +60,9 @@ public class JwtAopFactory implements AopFactory {
 
             if (!H.isEmpty(header) && header.startsWith(PREFIX)) {
                 String jwtstr = header.substring(PREFIX.length());
-                Jws<Claims> jwt;
+                JwtVerifier.VerifiedJwt jwt;
                 try {
-                    jwt = jwtParser.parseClaimsJws(jwtstr);
+                    jwt = verifier.verify(jwtstr);
                 } catch (ExpiredJwtException e) {
                     code = 410;
                     message = "authorization expired.";
@@ -73,35 +72,32 @@ public class JwtAopFactory implements AopFactory {
                     message = e.getMessage();
                     return false;
                 }
-                if (jwt == null) {
-                    code = 403;
-                    message = "jwt is missiong";
-                    return false;
-                }
-                HashMap<String,Object> map = new HashMap<>();
-                map.putAll(jwt.getBody());
+                Map<String, Object> claims = jwt.claims;
 
                 Session session = (Session) req.getObject(Session.class);
 
 
                 if (session == null) {
-                    String sessionId = jwt.getBody().getId();
+                    String sessionId = jwt.id();
                     SessionProvider sessionProvider = req.get(SessionProvider.class);
                     if (sessionProvider != null) {
                         session = sessionProvider.load(req,sessionId);
                         if (session == null) {
                             session = sessionProvider.newSession(sessionId);
-                            session.putAll(map);
+                            session.putAll(claims);
                         }else {
-                            for (Map.Entry<String,Object> entry : map.entrySet()) {
+                            for (Map.Entry<String,Object> entry : claims.entrySet()) {
                                 if (!session.has(entry.getKey())) {
                                     session.set(entry.getKey(), entry.getValue());
                                 }
                             }
                         }
+                        // attached, so it is flushed with the request
+                        req.setObject(Session.class, session);
                     }
                 }
-                req.setObject("jwt", map);
+                // copied into a map of its own only if JwtProvider is asked for it
+                req.setObject("jwt", jwt);
 
             }
 
@@ -12,4 +12,11 @@ public interface JwtOptions {
     byte[] jwtSecret() ;
 
     Duration jwtExpiration();
+
+    /**
+     * verified tokens remembered until they expire, a token sent again isn't checked again. 0 checks every token.
+     */
+    default int jwtCacheSize() {
+        return 10000;
+    }
 }
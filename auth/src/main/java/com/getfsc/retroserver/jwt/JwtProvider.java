@@ -28,7 +28,13 @@ public class JwtProvider {
 
 
     public HashMap<String, Object> getJwtData() {
-        return (HashMap<String, Object>) req.getObject("jwt");
+        Object jwt = req.getObject("jwt");
+        if (jwt instanceof JwtVerifier.VerifiedJwt) {
+            // the claims are shared with every request of the token, the request gets its own map once asked
+            jwt = ((JwtVerifier.VerifiedJwt) jwt).copy();
+            req.setObject("jwt", jwt);
+        }
+        return (HashMap<String, Object>) jwt;
     }
 
     public String setJwt(HashMap<String, Object> data) {
@@ -0,0 +1,242 @@
+package com.getfsc.retroserver.jwt;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.getfsc.retroserver.ObjectConvert;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.MalformedJwtException;
+import io.jsonwebtoken.PrematureJwtException;
+import io.jsonwebtoken.SignatureException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 27/10/18
+ * Time: 下午4:10
+ * <p>
+ * Checks bearer tokens for {@link JwtAopFactory}. Verified tokens are remembered until they
+ * expire, in a bounded LRU keyed by the whole token, so a client sending the same token again
+ * costs a map lookup. Tokens signed with HS256/384/512 are checked here, with a Mac kept per
+ * thread and per algorithm instead of one looked up for each token; anything else (compressed
+ * payloads, other algorithms) goes to the jjwt parser as before. Failures throw the exceptions
+ * jjwt would.
+ */
+class JwtVerifier {
+
+    private static final ObjectReader MAP_READER = ObjectConvert.readerFor(Map.class);
+    private static final String[] HMACS = {"HS256", "HS384", "HS512"};
+    private static final String[] MAC_NAMES = {"HmacSHA256", "HmacSHA384", "HmacSHA512"};
+    private static final int SHARDS = 16;
+
+    private final byte[] secret;
+    private final JwtParser parser;
+    private final Shard[] shards;
+    private final ThreadLocal<Mac[]> macs = ThreadLocal.withInitial(() -> new Mac[HMACS.length]);
+
+    /**
+     * @param cacheSize tokens remembered, 0 checks every token
+     */
+    JwtVerifier(byte[] secret, int cacheSize) {
+        this.secret = secret;
+        this.parser = Jwts.parser().setSigningKey(secret);
+        if (cacheSize > 0) {
+            this.shards = new Shard[SHARDS];
+            int perShard = Math.max(1, (cacheSize + SHARDS - 1) / SHARDS);
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new Shard(perShard);
+            }
+        } else {
+            this.shards = null;
+        }
+    }
+
+    VerifiedJwt verify(String token) {
+        long now = System.currentTimeMillis();
+        Shard shard = shards == null ? null : shards[spread(token.hashCode()) & (SHARDS - 1)];
+        if (shard != null) {
+            VerifiedJwt cached;
+            synchronized (shard) {
+                cached = shard.get(token);
+            }
+            if (cached != null) {
+                if (cached.expires <= now) {
+                    synchronized (shard) {
+                        shard.remove(token);
+                    }
+                    throw new ExpiredJwtException(null, null, "JWT expired at " + cached.expires);
+                }
+                return cached;
+            }
+        }
+
+        VerifiedJwt verified = verifyHmac(token);
+        if (verified == null) {
+            Claims claims = parser.parseClaimsJws(token).getBody();
+            verified = new VerifiedJwt(claims, millis(claims.get(Claims.EXPIRATION)), -1);
+        }
+        if (verified.expires <= now) {
+            throw new ExpiredJwtException(null, null, "JWT expired at " + verified.expires);
+        }
+        if (verified.notBefore > now) {
+            // not remembered, it becomes valid later
+            throw new PrematureJwtException(null, null, "JWT must not be accepted before " + verified.notBefore);
+        }
+        if (shard != null) {
+            synchronized (shard) {
+                shard.put(token, verified);
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * @return the verified claims, or null for a token this doesn't handle
+     */
+    private VerifiedJwt verifyHmac(String token) {
+        int first = token.indexOf('.');
+        int second = first < 0 ? -1 : token.indexOf('.', first + 1);
+        if (second < 0 || token.indexOf('.', second + 1) >= 0) {
+            throw new MalformedJwtException("JWT strings must contain exactly 2 period characters.");
+        }
+        Map<String, Object> header = json(token, 0, first);
+        // compressed payloads, "calg" is what this jjwt writes
+        if (header.containsKey("zip") || header.containsKey("calg") || header.containsKey("crit")) {
+            return null;
+        }
+        int alg = -1;
+        for (int i = 0; i < HMACS.length; i++) {
+            if (HMACS[i].equals(header.get("alg"))) {
+                alg = i;
+            }
+        }
+        if (alg < 0) {
+            return null;
+        }
+
+        byte[] signature;
+        try {
+            signature = Base64.getUrlDecoder().decode(token.substring(second + 1));
+        } catch (IllegalArgumentException e) {
+            throw new MalformedJwtException("Unable to decode the JWT signature", e);
+        }
+        Mac mac = mac(alg);
+        byte[] expected = mac.doFinal(token.substring(0, second).getBytes(StandardCharsets.US_ASCII));
+        if (!MessageDigest.isEqual(expected, signature)) {
+            throw new SignatureException("JWT signature does not match locally computed signature. "
+                    + "JWT validity cannot be asserted and should not be trusted.");
+        }
+
+        Map<String, Object> claims = json(token, first + 1, second);
+        return new VerifiedJwt(claims, millis(claims.get(Claims.EXPIRATION)), millis(claims.get(Claims.NOT_BEFORE)));
+    }
+
+    private Mac mac(int alg) {
+        Mac[] perThread = macs.get();
+        Mac mac = perThread[alg];
+        if (mac == null) {
+            try {
+                mac = Mac.getInstance(MAC_NAMES[alg]);
+                mac.init(new SecretKeySpec(secret, MAC_NAMES[alg]));
+            } catch (GeneralSecurityException e) {
+                throw new SignatureException("Unable to verify " + HMACS[alg] + " signatures", e);
+            }
+            perThread[alg] = mac;
+        }
+        return mac;
+    }
+
+    private static Map<String, Object> json(String token, int from, int to) {
+        try {
+            byte[] json = Base64.getUrlDecoder().decode(token.substring(from, to));
+            Map<String, Object> map = ObjectConvert.fromJson(MAP_READER, json, 0, json.length);
+            if (map == null) {
+                throw new MalformedJwtException("JWT header or payload is not a json object");
+            }
+            return map;
+        } catch (JwtException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new MalformedJwtException("Unable to read the JWT header or payload", e);
+        }
+    }
+
+    /**
+     * a NumericDate claim, seconds since the epoch, in millis.
+     *
+     * @return the millis, or {@link Long#MAX_VALUE} without the claim
+     */
+    private static long millis(Object seconds) {
+        if (seconds == null) {
+            return Long.MAX_VALUE;
+        }
+        if (seconds instanceof Number) {
+            return ((Number) seconds).longValue() * 1000;
+        }
+        if (seconds instanceof Date) {
+            return ((Date) seconds).getTime();
+        }
+        throw new MalformedJwtException("JWT date claims must be numbers");
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * the claims of a verified token, shared by every request sending it, so they can't be changed.
+     */
+    static final class VerifiedJwt {
+        final Map<String, Object> claims;
+        final long expires;
+        final long notBefore;
+
+        VerifiedJwt(Map<String, Object> claims, long expires, long notBefore) {
+            this.claims = Collections.unmodifiableMap(claims);
+            this.expires = expires;
+            this.notBefore = notBefore == Long.MAX_VALUE ? -1 : notBefore;
+        }
+
+        String id() {
+            Object id = claims.get(Claims.ID);
+            return id == null ? null : id.toString();
+        }
+
+        /**
+         * the claims as a map of the request's own.
+         */
+        HashMap<String, Object> copy() {
+            return new HashMap<>(claims);
+        }
+    }
+
+    private static final class Shard extends LinkedHashMap<String, VerifiedJwt> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxTokens;
+
+        Shard(int maxTokens) {
+            super(16, 0.75f, true);
+            this.maxTokens = maxTokens;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, VerifiedJwt> eldest) {
+            return size() > maxTokens;
+        }
+    }
+}
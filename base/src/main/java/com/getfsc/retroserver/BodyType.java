@@ -7,5 +7,9 @@ package com.getfsc.retroserver;
  * Time: 上午2:01
  */
 public enum BodyType {
-    DEFAULT , FORM_URL_ENCODED, MULTIPART
+    DEFAULT , FORM_URL_ENCODED, MULTIPART,
+    /**
+     * not buffered, the controller reads it through a {@link com.getfsc.retroserver.http.BodyStream}.
+     */
+    STREAM
 }
@@ -4,12 +4,20 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.Base64Variants;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.TextNode;
 import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
 import com.getfsc.retroserver.util.H;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
 
 /**
  * Created by IntelliJ IDEA.
@@ -52,4 +60,77 @@ public class ObjectConvert {
             throw H.rte(e);
         }
     }
+
+    /**
+     * serializes into the stream, jackson only buffers through its own recycled buffer.
+     */
+    public static void toJson(Object object, OutputStream out) {
+        try {
+            getInstance().objectMapper.writeValue(out, object);
+        } catch (IOException e) {
+            throw H.rte(e);
+        }
+    }
+
+    public static JavaType javaType(TypeReference<?> type) {
+        return getInstance().objectMapper.getTypeFactory().constructType(type);
+    }
+
+    /**
+     * reader bound to the full generic type, build it once and keep it, e.g. in a generated caller.
+     */
+    public static ObjectReader readerFor(TypeReference<?> type) {
+        return getInstance().objectMapper.readerFor(type);
+    }
+
+    public static ObjectReader readerFor(Class<?> clazz) {
+        return getInstance().objectMapper.readerFor(clazz);
+    }
+
+    public static ObjectWriter writerFor(JavaType type) {
+        return getInstance().objectMapper.writerFor(type);
+    }
+
+    /**
+     * reads a plain text value, the way {@link #convert(Object, Class)} treats a string.
+     */
+    public static <T> T fromText(ObjectReader reader, String text) {
+        try {
+            return reader.readValue(new TextNode(text));
+        } catch (IOException e) {
+            throw H.rte(e);
+        }
+    }
+
+    public static <T> T fromJson(ObjectReader reader, byte[] bytes, int offset, int length) {
+        try {
+            return reader.readValue(bytes, offset, length);
+        } catch (IOException e) {
+            throw H.rte(e);
+        }
+    }
+
+    public static <T> T fromJson(ObjectReader reader, InputStream in) {
+        try {
+            return reader.readValue(in);
+        } catch (IOException e) {
+            throw H.rte(e);
+        }
+    }
+
+    public static <T> T fromJson(ObjectReader reader, Reader in) {
+        try {
+            return reader.readValue(in);
+        } catch (IOException e) {
+            throw H.rte(e);
+        }
+    }
+
+    public static void toJson(ObjectWriter writer, Object object, OutputStream out) {
+        try {
+            writer.writeValue(out, object);
+        } catch (IOException e) {
+            throw H.rte(e);
+        }
+    }
 }
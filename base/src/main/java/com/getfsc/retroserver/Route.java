@@ -1,5 +1,9 @@
 package com.getfsc.retroserver;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.getfsc.retroserver.aop.AopChain;
 import com.getfsc.retroserver.aop.AopFactory;
 import com.getfsc.retroserver.aop.AopFactoryHub;
 import com.getfsc.retroserver.http.RequestCaller;
@@ -20,6 +24,17 @@ public class Route {
     private String baseUrl;
     private BodyType bodyType = BodyType.DEFAULT;
     private List<String> headers = new ArrayList<>();
+    private String[] segments;
+    private Boolean blocking;
+    private static final int MAX_RESPONSE_SIZE_HINT = 64 * 1024;
+
+    private int responseSizeHint = 256;
+    private ObjectWriter responseWriter;
+    private Class<?> responseClass;
+    private boolean responseContainer;
+    private long multipartMemoryThreshold = -1;
+    private long maxPartSize = -1;
+    private int maxParts = -1;
 
     public Route() {
     }
@@ -40,6 +55,76 @@ public class Route {
         this.url = url;
     }
 
+    /**
+     * path segments of baseUrl + url, split by the annotation processor at compile time.
+     * a segment in the form of {name} is a path param.
+     */
+    public void setSegments(String... segments) {
+        this.segments = segments;
+    }
+
+    public String[] getSegments() {
+        return segments;
+    }
+
+    public void setBlocking(Boolean blocking) {
+        this.blocking = blocking;
+    }
+
+    /**
+     * @return null if the route didn't choose, the server default applies then.
+     */
+    public Boolean getBlocking() {
+        return blocking;
+    }
+
+    public boolean isBlocking() {
+        return Boolean.TRUE.equals(blocking);
+    }
+
+    /**
+     * initial capacity for the next serialized response of this route.
+     */
+    public int getResponseSizeHint() {
+        return responseSizeHint;
+    }
+
+    /**
+     * grows to the biggest response seen and decays slowly when responses shrink.
+     * capped at 64k, so one huge response doesn't make the next ones start from unpooled buffers;
+     * bigger responses grow their buffer. racy on purpose, a lost update only costs a buffer resize.
+     */
+    public void updateResponseSizeHint(int size) {
+        int hint = responseSizeHint;
+        size = Math.min(size, MAX_RESPONSE_SIZE_HINT);
+        responseSizeHint = size >= hint ? size : hint - ((hint - size) >> 3);
+    }
+
+    /**
+     * the declared result type of the controller method, with its generic arguments.
+     */
+    public void setResponseType(TypeReference<?> type) {
+        JavaType javaType = ObjectConvert.javaType(type);
+        responseWriter = ObjectConvert.writerFor(javaType);
+        responseClass = javaType.getRawClass();
+        responseContainer = javaType.isContainerType();
+    }
+
+    /**
+     * @return the pre-built writer if it fits the body, null to let jackson look the type up.
+     * a subclass of a plain declared type would lose its own properties with the declared
+     * writer, so those only match exactly; containers match any implementation.
+     */
+    public ObjectWriter getResponseWriter(Object body) {
+        if (responseWriter == null || body == null) {
+            return null;
+        }
+        if (body.getClass() == responseClass || responseContainer && responseClass.isInstance(body)) {
+            return responseWriter;
+        }
+        return null;
+    }
+
     public void setCaller(RequestCaller caller) {
         this.caller = caller;
     }
@@ -65,6 +150,27 @@ public class Route {
         this.bodyType = bodyType;
     }
 
+    /**
+     * limits of a form or multipart body, a negative value keeps the server's setting.
+     */
+    public void setMultipartConfig(long memoryThreshold, long maxPartSize, int maxParts) {
+        this.multipartMemoryThreshold = memoryThreshold;
+        this.maxPartSize = maxPartSize;
+        this.maxParts = maxParts;
+    }
+
+    public long getMultipartMemoryThreshold() {
+        return multipartMemoryThreshold;
+    }
+
+    public long getMaxPartSize() {
+        return maxPartSize;
+    }
+
+    public int getMaxParts() {
+        return maxParts;
+    }
+
     public String getVerb() {
         return verb;
     }
@@ -82,6 +188,7 @@ public class Route {
     }
 
     private List<AopFactory> aopFactories = new ArrayList<>();
+    private AopChain aopChain = AopChain.EMPTY;
 
 
     private LinkedHashMap<String, Object[]> aops = new LinkedHashMap<>();
@@ -95,9 +202,14 @@ public class Route {
         for (Map.Entry<String, Object[]> entry : aops.entrySet()) {
             aopFactories.add(hub.newFactory(entry.getKey(), entry.getValue()));
         }
+        aopChain = new AopChain(aopFactories);
     }
 
     public List<AopFactory> getAopFactories() {
         return aopFactories;
     }
+
+    public AopChain getAopChain() {
+        return aopChain;
+    }
 }
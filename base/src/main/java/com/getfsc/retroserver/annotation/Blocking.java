@@ -0,0 +1,23 @@
+package com.getfsc.retroserver.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午3:40
+ * <p>
+ * Runs the controller method on the server's blocking executor instead of the event loop,
+ * for endpoints that touch a database, files or anything else that may block.
+ * {@code @Blocking(false)} keeps a method on the event loop when blocking is the server default.
+ */
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface Blocking {
+    boolean value() default true;
+}
@@ -0,0 +1,32 @@
+package com.getfsc.retroserver.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 27/10/18
+ * Time: 上午12:10
+ * <p>
+ * Limits of a form or multipart route, a negative value keeps the server's setting.
+ */
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface MultipartConfig {
+
+    /**
+     * fields and parts up to this size stay in memory, bigger ones go to a temp file.
+     */
+    long memoryThreshold() default -1;
+
+    /**
+     * largest single field or part, the request is answered with 413 beyond it.
+     */
+    long maxPartSize() default -1;
+
+    int maxParts() default -1;
+}
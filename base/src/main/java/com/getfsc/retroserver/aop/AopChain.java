@@ -0,0 +1,87 @@
+package com.getfsc.retroserver.aop;
+
+import com.getfsc.retroserver.http.ServerRequest;
+
+import java.util.List;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午4:20
+ * <p>
+ * Interceptor chain of a route, compiled once from its factories. Interceptors of
+ * {@link AopFactory#stateless() stateless} factories are created here and shared, so a chain
+ * made of stateless factories costs no allocation per request.
+ */
+public final class AopChain {
+
+    public static final AopChain EMPTY = new AopChain(new AopFactory[0]);
+
+    private final AopFactory[] factories;
+    private final AopInterceptor[] shared;
+    private final boolean allStateless;
+
+    public AopChain(List<AopFactory> factories) {
+        this(factories.toArray(new AopFactory[factories.size()]));
+    }
+
+    private AopChain(AopFactory[] factories) {
+        this.factories = factories;
+        this.shared = new AopInterceptor[factories.length];
+        boolean allStateless = true;
+        for (int i = 0; i < factories.length; i++) {
+            if (factories[i].stateless()) {
+                shared[i] = factories[i].create();
+            } else {
+                allStateless = false;
+            }
+        }
+        this.allStateless = allStateless;
+    }
+
+    /**
+     * @return the interceptors for one request, pass them back to the other methods.
+     */
+    public AopInterceptor[] open() {
+        if (allStateless) {
+            return shared;
+        }
+        AopInterceptor[] aops = shared.clone();
+        for (int i = 0; i < aops.length; i++) {
+            if (aops[i] == null) {
+                aops[i] = factories[i].create();
+            }
+        }
+        return aops;
+    }
+
+    /**
+     * @return true if every interceptor lets the controller method be invoked.
+     */
+    public boolean beforeInvoke(AopInterceptor[] aops, ServerRequest request) {
+        for (AopInterceptor aop : aops) {
+            if (!aop.beforeInvoke(request)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void afterInvoke(AopInterceptor[] aops, ServerRequest request) {
+        for (AopInterceptor aop : aops) {
+            aop.afterInvoke(request);
+        }
+    }
+
+    /**
+     * destroys the per request interceptors, shared ones live as long as the chain.
+     */
+    public void destroy(AopInterceptor[] aops) {
+        for (int i = 0; i < aops.length; i++) {
+            if (shared[i] == null) {
+                aops[i].destory();
+            }
+        }
+    }
+}
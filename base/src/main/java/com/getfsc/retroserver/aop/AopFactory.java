@@ -21,4 +21,26 @@ public interface AopFactory {
         return 9999;
     };
 
+    /**
+     * @return true if the interceptor keeps no per request state, then {@link #create()} is called
+     * once when the route is installed and the interceptor is shared by all requests.
+     */
+    default boolean stateless() {
+        return false;
+    }
+
+    static AopFactory stateless(AopInterceptor interceptor) {
+        return new AopFactory() {
+            @Override
+            public AopInterceptor create() {
+                return interceptor;
+            }
+
+            @Override
+            public boolean stateless() {
+                return true;
+            }
+        };
+    }
+
 }
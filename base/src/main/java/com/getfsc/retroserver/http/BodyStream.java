@@ -0,0 +1,48 @@
+package com.getfsc.retroserver.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午11:10
+ * <p>
+ * Body of a request, handed to the controller as it comes off the connection instead of being
+ * buffered first. A route gets one by taking a BodyStream parameter, the controller then runs as
+ * soon as the headers are in. Reading from the connection stops while the stream is paused, and
+ * until a handler is set.
+ */
+public interface BodyStream {
+
+    /**
+     * chunks received before this call are delivered first. the handler is called on the
+     * connection's event loop and should not block, pause the stream and resume it later instead.
+     */
+    void handler(Handler handler);
+
+    void pause();
+
+    void resume();
+
+    /**
+     * bytes received so far.
+     */
+    long received();
+
+    interface Handler {
+
+        /**
+         * the buffer is only valid during the call, copy what has to be kept.
+         * an exception ends the stream, the rest of the body is discarded.
+         */
+        void chunk(ByteBuffer chunk) throws Exception;
+
+        void end();
+
+        /**
+         * the connection closed before the end of the body, or {@link #chunk} threw.
+         */
+        void error(Throwable cause);
+    }
+}
@@ -1,7 +1,9 @@
 package com.getfsc.retroserver.http;
 
+import com.fasterxml.jackson.databind.ObjectReader;
 import okhttp3.RequestBody;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -20,8 +22,23 @@ public interface ServerRequest {
 
     RequestBody part(String key);
 
+    /**
+     * the file part named key, the first one if there are several, or null.
+     */
+    UploadedPart upload(String key);
+
+    /**
+     * all file parts named key, in the order they came, e.g. of an {@code <input type=file multiple>}.
+     */
+    List<UploadedPart> uploads(String key);
+
     Value header(String key);
 
+    /**
+     * value of the request cookie named name, the Cookie header is parsed once per request.
+     */
+    Value cookie(String name);
+
 
     String uri();
 
@@ -29,6 +46,22 @@ public interface ServerRequest {
 
     <T> T body(Class<T> clz);
 
+    /**
+     * body read with a pre-built reader, which keeps the generic type of the parameter.
+     */
+    <T> T body(ObjectReader reader);
+
+    /**
+     * the body as it arrives, for routes taking a {@link BodyStream} parameter; null for the others.
+     */
+    BodyStream bodyStream();
+
+    /**
+     * whether the request runs on the blocking executor, where waiting on a database or a remote
+     * store is fine, rather than on an event loop.
+     */
+    boolean isBlocking();
+
     Map<String, String> queryMap();
 
     void setObject(Object key, Object value);
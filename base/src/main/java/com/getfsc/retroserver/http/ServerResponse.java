@@ -22,6 +22,10 @@ public interface ServerResponse<T> {
 
     T body();
 
+    /**
+     * byte[], ByteBuffer and ByteBuf bodies are sent without copying, so they must not be changed
+     * afterwards. A ByteBuf's reference count is handed over and released by the server.
+     */
     ServerResponse<T> setBody(T body);
 
     default ServerResponse<T> ok(T result) {
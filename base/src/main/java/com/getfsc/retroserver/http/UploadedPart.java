@@ -0,0 +1,32 @@
+package com.getfsc.retroserver.http;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 27/10/18
+ * Time: 上午12:15
+ * <p>
+ * A file part of a multipart request. Its temp file is deleted once the request is done,
+ * unless it was moved away.
+ */
+public interface UploadedPart {
+
+    String name();
+
+    String filename();
+
+    String contentType();
+
+    long size();
+
+    boolean inMemory();
+
+    /**
+     * puts the part at {@code destination}: a rename when the temp file is on the same file system,
+     * a channel transfer otherwise, and a single write for a part still in memory.
+     */
+    File moveTo(File destination) throws IOException;
+}
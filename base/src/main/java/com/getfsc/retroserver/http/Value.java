@@ -2,6 +2,8 @@ package com.getfsc.retroserver.http;
 
 import com.getfsc.retroserver.ObjectConvert;
 
+import java.util.UUID;
+
 /**
  * Created by IntelliJ IDEA.
  * User: draco
@@ -13,7 +15,11 @@ public interface Value {
     Object value();
 
     default <T> T get(Class<T> clazz) {
-        return ObjectConvert.convert(value(), clazz);
+        Object value = value();
+        if (clazz.isInstance(value)) {
+            return (T) value;
+        }
+        return ObjectConvert.convert(value, clazz);
     }
 
 
@@ -24,4 +30,63 @@ public interface Value {
             return get((Class<T>) defaultValue.getClass());
         }
     }
+
+    // the accessors below parse the raw value directly, without boxing or a round trip through jackson.
+    // a malformed value fails with an IllegalArgumentException (NumberFormatException included), answered with 400
+
+    default boolean isNull() {
+        return value() == null;
+    }
+
+    default String asString() {
+        Object value = value();
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * the value as text, for the primitive accessors that have nothing to return for a missing one.
+     */
+    default String required() {
+        String value = asString();
+        if (value == null) {
+            throw new IllegalArgumentException("missing value");
+        }
+        return value.trim();
+    }
+
+    default int asInt() {
+        return Integer.parseInt(required());
+    }
+
+    default long asLong() {
+        return Long.parseLong(required());
+    }
+
+    default double asDouble() {
+        return Double.parseDouble(required());
+    }
+
+    /**
+     * true/false in any case, or 1/0. anything else is rejected rather than read as false.
+     */
+    default boolean asBoolean() {
+        String value = required();
+        if ("true".equalsIgnoreCase(value) || "1".equals(value)) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value) || "0".equals(value)) {
+            return false;
+        }
+        throw new IllegalArgumentException("not a boolean: " + value);
+    }
+
+    default UUID asUuid() {
+        String value = asString();
+        return value == null ? null : UUID.fromString(value.trim());
+    }
+
+    default <E extends Enum<E>> E asEnum(Class<E> type) {
+        String value = asString();
+        return value == null ? null : Enum.valueOf(type, value.trim());
+    }
 }
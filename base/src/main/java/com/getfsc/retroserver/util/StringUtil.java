@@ -1,5 +1,8 @@
 package com.getfsc.retroserver.util;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by IntelliJ IDEA.
  * User: draco
@@ -13,4 +16,21 @@ public class StringUtil {
         c[0] = Character.toLowerCase(c[0]);
         return new String(c);
     }
+
+    /**
+     * Joins the given url parts and splits them into path segments, dropping empty ones,
+     * so "/users/" + "{user}/repos" gives ["users", "{user}", "repos"].
+     */
+    public static String[] splitPath(String... parts) {
+        List<String> segments = new ArrayList<>();
+        for (String part : parts) {
+            if (part == null) continue;
+            for (String segment : part.split("/")) {
+                if (!segment.isEmpty()) {
+                    segments.add(segment);
+                }
+            }
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
 }
@@ -1,9 +1,15 @@
 package com.getfsc.retroserver.annotation;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.getfsc.retroserver.BodyType;
+import com.getfsc.retroserver.ObjectConvert;
 import com.getfsc.retroserver.Route;
+import com.getfsc.retroserver.http.BodyStream;
 import com.getfsc.retroserver.http.RequestCaller;
 import com.getfsc.retroserver.http.ServerRequest;
+import com.getfsc.retroserver.http.UploadedPart;
+import com.getfsc.retroserver.http.Value;
 import com.getfsc.retroserver.util.StringUtil;
 import com.squareup.javapoet.*;
 import dagger.Module;
@@ -15,9 +21,11 @@ import javax.annotation.processing.ProcessingEnvironment;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.lang.model.element.*;
+import javax.lang.model.type.ArrayType;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
 import javax.lang.model.util.ElementFilter;
 import javax.tools.FileObject;
 import javax.tools.JavaFileObject;
@@ -25,9 +33,12 @@ import javax.tools.StandardLocation;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.UUID;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -125,22 +136,22 @@ public class ControllerGenerator {
                                             .addParameter(ServerRequest.class, "request")
                                             .returns(TypeName.get(method.getReturnType()));
                                     handleServerAnnotation(method, beforeRoute, call);
+                                    handleResponseType(method, beforeRoute);
 
+                                    TypeSpec.Builder caller = TypeSpec.anonymousClassBuilder("")
+                                            .addSuperinterface(RequestCaller.class);
 
-                                    String vars = endPointInterface.element.getParameters().stream().map(ve -> addParam(call, ve))
+                                    String vars = endPointInterface.element.getParameters().stream().map(ve -> addParam(caller, call, ve))
                                             .collect(Collectors.joining(", "));
 
                                     call.addStatement("return controller.$L($L)", method.getSimpleName().toString(), vars);
-
-
-                                    TypeSpec.Builder caller = TypeSpec.anonymousClassBuilder("")
-                                            .addSuperinterface(RequestCaller.class)
-                                            .addMethod(call.build());
+                                    caller.addMethod(call.build());
 
                                     MethodSpec methodSpec = beforeRoute
                                             .addStatement("route.setVerb($S)", endPointInterface.verb)
                                             .addStatement("route.setBaseUrl($S)", baseUrl)
                                             .addStatement("route.setUrl($S)", endPointInterface.url)
+                                            .addStatement("route.setSegments($L)", segments(baseUrl, endPointInterface.url))
                                             .addStatement("route.setBodyType($T.$L)", BodyType.class, endPointInterface.bodyType)
                                             .addStatement("route.setCaller($L)", caller.build())
                                             .addStatement("return route")
@@ -166,6 +177,15 @@ public class ControllerGenerator {
                 route.addStatement("route.addHeader($S)", header);
             }
         }
+        Blocking blocking = method.getAnnotation(Blocking.class);
+        if (blocking != null) {
+            route.addStatement("route.setBlocking($L)", blocking.value());
+        }
+        MultipartConfig multipart = method.getAnnotation(MultipartConfig.class);
+        if (multipart != null) {
+            route.addStatement("route.setMultipartConfig($LL, $LL, $L)",
+                    multipart.memoryThreshold(), multipart.maxPartSize(), multipart.maxParts());
+        }
 
         for (AnnotationMirror mirror : method.getAnnotationMirrors()) {
             for (AnnotationMirror am : mirror.getAnnotationType().asElement().getAnnotationMirrors()) {
@@ -192,7 +212,127 @@ public class ControllerGenerator {
         }
     }
 
-    private String addParam(MethodSpec.Builder call, VariableElement ve) {
+    private CodeBlock segments(String baseUrl, String url) {
+        String[] segments = StringUtil.splitPath(baseUrl, url);
+        CodeBlock.Builder builder = CodeBlock.builder();
+        for (int i = 0; i < segments.length; i++) {
+            builder.add(i == 0 ? "$S" : ", $S", segments[i]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * a writer bound to T of Call&lt;T&gt;, so generic results don't need a type lookup per response.
+     */
+    private void handleResponseType(ExecutableElement method, MethodSpec.Builder route) {
+        TypeMirror returnType = method.getReturnType();
+        if (returnType.getKind() != TypeKind.DECLARED) {
+            return;
+        }
+        List<? extends TypeMirror> args = ((DeclaredType) returnType).getTypeArguments();
+        if (args.size() != 1) {
+            return;
+        }
+        TypeMirror result = args.get(0);
+        if ((result.getKind() == TypeKind.DECLARED || result.getKind() == TypeKind.ARRAY) && isResolvable(result)
+                && !result.toString().equals(Object.class.getName()) && !result.toString().equals(Void.class.getName())) {
+            route.addStatement("route.setResponseType(new $T<$T>() {})", TypeReference.class, TypeName.get(result));
+        }
+    }
+
+    /**
+     * false if the type mentions a type variable, a TypeReference can't capture those.
+     */
+    private boolean isResolvable(TypeMirror type) {
+        switch (type.getKind()) {
+            case TYPEVAR:
+            case ERROR:
+            case NONE:
+                return false;
+            case WILDCARD:
+                WildcardType wildcard = (WildcardType) type;
+                return (wildcard.getExtendsBound() == null || isResolvable(wildcard.getExtendsBound()))
+                        && (wildcard.getSuperBound() == null || isResolvable(wildcard.getSuperBound()));
+            case ARRAY:
+                return isResolvable(((ArrayType) type).getComponentType());
+            case DECLARED:
+                return ((DeclaredType) type).getTypeArguments().stream().allMatch(this::isResolvable);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * simple types are parsed with the Value accessors, only complex ones go through jackson.
+     */
+    private String addValue(MethodSpec.Builder call, VariableElement ve, TypeName varType, TypeName rawType,
+                            String varname, String source, String key) {
+        TypeMirror type = ve.asType();
+        String accessor = PRIMITIVE_ACCESSORS.get(type.getKind());
+        if (accessor != null) {
+            // a primitive can't be left null, a missing one is the client's mistake
+            String value = varname + "Value";
+            call.addStatement("$T $L = request.$L($S)", Value.class, value, source, key);
+            call.beginControlFlow("if ($L.isNull())", value);
+            call.addStatement("throw new $T($S)", IllegalArgumentException.class, "missing " + source + " param: " + key);
+            call.endControlFlow();
+            call.addStatement("$T $L = $L.$L()", varType, varname, value, accessor);
+            return varname;
+        }
+        accessor = BOXED_ACCESSORS.get(rawType.toString());
+        if (accessor != null) {
+            String value = varname + "Value";
+            call.addStatement("$T $L = request.$L($S)", Value.class, value, source, key);
+            call.addStatement("$T $L = $L.isNull() ? null : $L.$L()", varType, varname, value, value, accessor);
+            return varname;
+        }
+        if (rawType.toString().equals(String.class.getName())) {
+            call.addStatement("$T $L = request.$L($S).asString()", varType, varname, source, key);
+        } else if (rawType.toString().equals(UUID.class.getName())) {
+            call.addStatement("$T $L = request.$L($S).asUuid()", varType, varname, source, key);
+        } else if (type.getKind() == TypeKind.DECLARED
+                && ((DeclaredType) type).asElement().getKind() == ElementKind.ENUM) {
+            call.addStatement("$T $L = request.$L($S).asEnum($T.class)", varType, varname, source, key, rawType);
+        } else {
+            call.addStatement("$T $L = request.$L($S).get($T.class)", varType, varname, source, key, rawType);
+        }
+        return varname;
+    }
+
+    private static final Map<TypeKind, String> PRIMITIVE_ACCESSORS = new EnumMap<>(TypeKind.class);
+    private static final Map<String, String> BOXED_ACCESSORS = new HashMap<>();
+    private static final ClassName BODY_STREAM = ClassName.get(BodyStream.class);
+    private static final ClassName UPLOADED_PART = ClassName.get(UploadedPart.class);
+    private static final TypeName UPLOADED_PARTS = ParameterizedTypeName.get(ClassName.get(List.class), UPLOADED_PART);
+
+    static {
+        PRIMITIVE_ACCESSORS.put(TypeKind.INT, "asInt");
+        PRIMITIVE_ACCESSORS.put(TypeKind.LONG, "asLong");
+        PRIMITIVE_ACCESSORS.put(TypeKind.DOUBLE, "asDouble");
+        PRIMITIVE_ACCESSORS.put(TypeKind.BOOLEAN, "asBoolean");
+        BOXED_ACCESSORS.put(Integer.class.getName(), "asInt");
+        BOXED_ACCESSORS.put(Long.class.getName(), "asLong");
+        BOXED_ACCESSORS.put(Double.class.getName(), "asDouble");
+        BOXED_ACCESSORS.put(Boolean.class.getName(), "asBoolean");
+    }
+
+    private String addBody(TypeSpec.Builder caller, MethodSpec.Builder call, VariableElement ve, TypeName varType,
+                           TypeName rawType, String varname) {
+        if (rawType.equals(BODY_STREAM)) {
+            call.addStatement("$T $L = request.bodyStream()", varType, varname);
+        } else if (isResolvable(ve.asType())) {
+            String reader = varname + "Reader";
+            caller.addField(FieldSpec.builder(ObjectReader.class, reader, Modifier.PRIVATE, Modifier.FINAL)
+                    .initializer("$T.readerFor(new $T<$T>() {})", ObjectConvert.class, TypeReference.class, varType.box())
+                    .build());
+            call.addStatement("$T $L = request.body($L)", varType, varname, reader);
+        } else {
+            call.addStatement("$T $L= request.body($T.class)", varType, varname, rawType);
+        }
+        return varname;
+    }
+
+    private String addParam(TypeSpec.Builder caller, MethodSpec.Builder call, VariableElement ve) {
         TypeName varType = TypeName.get(ve.asType());
         Path path = ve.getAnnotation(Path.class);
         TypeName rawType;
@@ -203,28 +343,20 @@ public class ControllerGenerator {
         }
         String varname = ve.getSimpleName().toString();
         if (path != null) {
-            call.addStatement("$T $L = request.path($S).get($T.class)",
-                    varType, varname, path.value(), rawType);
-            return varname;
+            return addValue(call, ve, varType, rawType, varname, "path", path.value());
         }
         Query query = ve.getAnnotation(Query.class);
         if (query != null) {
-            call.addStatement("$T $L = request.query($S).get($T.class)",
-                    varType, varname, query.value(), rawType);
-            return varname;
+            return addValue(call, ve, varType, rawType, varname, "query", query.value());
         }
         Field field = ve.getAnnotation(Field.class);
         if (field != null) {
-            call.addStatement("$T $L = request.field($S).get($T.class)",
-                    varType, varname, field.value(), rawType);
-            return varname;
+            return addValue(call, ve, varType, rawType, varname, "field", field.value());
         }
 
         Header header = ve.getAnnotation(Header.class);
         if (header != null) {
-            call.addStatement("$T $L = request.header($S).get($T.class)",
-                    varType, varname, header.value(), rawType);
-            return varname;
+            return addValue(call, ve, varType, rawType, varname, "header", header.value());
         }
 
         QueryMap queryMap = ve.getAnnotation(QueryMap.class);
@@ -236,22 +368,24 @@ public class ControllerGenerator {
 
         Body body = ve.getAnnotation(Body.class);
         if (body != null) {
-
-            call.addStatement("$T $L= request.body($T.class)", varType, varname, rawType);
-            return varname;
+            return addBody(caller, call, ve, varType, rawType, varname);
         }
 
         Part part = ve.getAnnotation(Part.class);
         if (part != null) {
-            call.addStatement("$T $L = request.part($S)",
-                    RequestBody.class, varname, part.value());
+            if (rawType.equals(UPLOADED_PART)) {
+                call.addStatement("$T $L = request.upload($S)", UploadedPart.class, varname, part.value());
+            } else if (varType.equals(UPLOADED_PARTS)) {
+                call.addStatement("$T $L = request.uploads($S)", varType, varname, part.value());
+            } else {
+                call.addStatement("$T $L = request.part($S)",
+                        RequestBody.class, varname, part.value());
+            }
             return varname;
         }
 
         //don't know how to set this value, may be it's body
-        call.addStatement("$T $L= request.body($T.class)", varType, varname, rawType);
-
-        return varname;
+        return addBody(caller, call, ve, varType, rawType, varname);
     }
 
 
@@ -311,6 +445,11 @@ public class ControllerGenerator {
                 if (part != null)
                     endpoint.bodyType = BodyType.MULTIPART;
             }
+            for (VariableElement parameter : element.getParameters()) {
+                if (TypeName.get(parameter.asType()).equals(BODY_STREAM)) {
+                    endpoint.bodyType = BodyType.STREAM;
+                }
+            }
         }
 
 
@@ -0,0 +1,81 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午3:52
+ * <p>
+ * Bounded pool that {@link com.getfsc.retroserver.annotation.Blocking} routes run on, so a slow
+ * controller only holds one of these threads instead of an event loop shared by many connections.
+ * <p>
+ * A second pool of as many threads reads InputStream response bodies ({@link StreamChunkedInput}).
+ * Its queue is not bounded, a response has at most one read queued, and a body that is half sent
+ * can't be refused any more.
+ */
+public class BlockingExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor readers;
+    private final LongAdder rejected = new LongAdder();
+
+    BlockingExecutor(int threads, int queueSize) {
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), new DefaultThreadFactory("retro-blocking", true));
+        executor.allowCoreThreadTimeOut(true);
+        readers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new DefaultThreadFactory("retro-read", true));
+        readers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return false if the queue is full, the caller should answer 503.
+     */
+    boolean execute(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    /**
+     * the threads reading response bodies.
+     */
+    Executor readers() {
+        return readers;
+    }
+
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    public int activeCount() {
+        return executor.getActiveCount();
+    }
+
+    public long completedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+        readers.shutdown();
+    }
+}
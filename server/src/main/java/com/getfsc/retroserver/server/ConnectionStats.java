@@ -0,0 +1,64 @@
+package com.getfsc.retroserver.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午4:52
+ * <p>
+ * Connection reuse counters shared by all channels of a server.
+ */
+public class ConnectionStats {
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder pipelined = new LongAdder();
+
+    void connectionOpened() {
+        opened.increment();
+    }
+
+    void connectionClosed() {
+        closed.increment();
+    }
+
+    void request(boolean reusedConnection, boolean behindOthers) {
+        requests.increment();
+        if (reusedConnection) {
+            reused.increment();
+        }
+        if (behindOthers) {
+            pipelined.increment();
+        }
+    }
+
+    public long openedConnections() {
+        return opened.sum();
+    }
+
+    public long activeConnections() {
+        return opened.sum() - closed.sum();
+    }
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    /**
+     * requests that came in on a connection which already served one.
+     */
+    public long reusedRequests() {
+        return reused.sum();
+    }
+
+    /**
+     * requests read while an earlier one on the same connection was still being answered.
+     */
+    public long pipelinedRequests() {
+        return pipelined.sum();
+    }
+}
@@ -0,0 +1,283 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午9:40
+ * <p>
+ * LRU of the files served as response bodies. Small files are kept whole in a direct buffer,
+ * bigger ones keep their open FileChannel, which all responses of the file share through
+ * positional reads. A file is stat'ed at most once per {@link ServerOptions#fileCacheValidity()},
+ * and is reloaded when its size or mtime moved; missing files are remembered the same way, so
+ * probing for a precompressed sibling costs nothing on a hit. Only hits are served without the disk,
+ * {@link StaticFiles} looks up misses on its reading threads.
+ */
+public class FileCache {
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(FileCache.class);
+
+    /**
+     * what a lookup in the cache only returns for a file that has to be looked at on the disk.
+     */
+    static final Entry UNKNOWN = new Entry(null, -1, 0, null, null, null, null, 0);
+
+    private final long maxBytes;
+    private final int maxFileSize;
+    private final int maxEntries;
+    private final long validityNanos;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    private int openFiles;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    FileCache(ServerOptions options) {
+        this.maxBytes = options.fileCacheSize();
+        this.maxFileSize = options.fileCacheMaxFileSize();
+        this.maxEntries = Math.max(1, options.fileCacheEntries());
+        this.validityNanos = options.fileCacheValidity() * 1000_000L;
+    }
+
+    /**
+     * @param coding     content coding of the file, part of its etag
+     * @param cachedOnly not to touch the disk, {@link #UNKNOWN} is returned if it would have to
+     * @return the entry retained for the caller, or null if the file is missing or not a regular file
+     */
+    Entry get(File file, String coding, boolean cachedOnly) throws IOException {
+        String key = file.getPath();
+        long now = System.nanoTime();
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(key);
+            if (cached != null && now - cached.checked < validityNanos) {
+                hits.increment();
+                return cached.missing() ? null : cached.retain();
+            }
+        }
+        if (cachedOnly) {
+            return UNKNOWN;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        if (attributes != null && !attributes.isRegularFile()) {
+            attributes = null;
+        }
+
+        if (cached != null && sameFile(cached, attributes)) {
+            synchronized (this) {
+                // unless it was evicted meanwhile, then it is loaded again below
+                if (entries.get(key) == cached) {
+                    cached.checked = now;
+                    hits.increment();
+                    return cached.missing() ? null : cached.retain();
+                }
+            }
+        }
+        misses.increment();
+
+        Entry loaded = attributes == null
+                ? new Entry(key, -1, 0, null, coding, null, null, now)
+                : load(file, attributes, coding, now);
+        synchronized (this) {
+            Entry replaced = entries.put(key, loaded);
+            if (replaced != null) {
+                evicted(replaced);
+            }
+            cachedBytes += loaded.cachedBytes();
+            if (loaded.channel != null) {
+                openFiles++;
+            }
+            trim();
+            return loaded.missing() ? null : loaded.retain();
+        }
+    }
+
+    private static boolean sameFile(Entry entry, BasicFileAttributes attributes) {
+        if (attributes == null) {
+            return entry.missing();
+        }
+        return entry.length == attributes.size() && entry.lastModified == attributes.lastModifiedTime().toMillis();
+    }
+
+    private Entry load(File file, BasicFileAttributes attributes, String coding, long now) throws IOException {
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = '"' + Long.toHexString(length) + '-' + Long.toHexString(lastModified)
+                + (coding == null ? "" : '-' + coding) + '"';
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        if (length > maxFileSize || length > maxBytes) {
+            return new Entry(file.getPath(), length, lastModified, etag, coding, channel, null, now);
+        }
+        try {
+            ByteBuf content = Unpooled.directBuffer((int) length);
+            try {
+                while (content.isWritable()) {
+                    int read = channel.read(content.nioBuffer(content.writerIndex(), content.writableBytes()),
+                            content.writerIndex());
+                    if (read < 0) {
+                        // shrunk while being read, it is stat'ed again once the entry expires
+                        break;
+                    }
+                    content.writerIndex(content.writerIndex() + read);
+                }
+            } catch (IOException e) {
+                content.release();
+                throw e;
+            }
+            return new Entry(file.getPath(), content.readableBytes(), lastModified, etag, coding, null, content, now);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ((cachedBytes > maxBytes || entries.size() > maxEntries) && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            evicted(eldest);
+        }
+    }
+
+    private void evicted(Entry entry) {
+        cachedBytes -= entry.cachedBytes();
+        if (entry.channel != null) {
+            openFiles--;
+        }
+        if (!entry.missing()) {
+            entry.release();
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized int openFiles() {
+        return openFiles;
+    }
+
+    synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            evicted(entry);
+        }
+        entries.clear();
+    }
+
+    /**
+     * one version of a file, freed once the cache dropped it and the last response using it is written.
+     */
+    static final class Entry extends AbstractReferenceCounted {
+        final String path;
+        final long length;
+        final long lastModified;
+        final String etag;
+        // the content coding of a precompressed sibling, null for the file itself
+        final String coding;
+        final FileChannel channel;
+        final ByteBuf content;
+        long checked;
+
+        Entry(String path, long length, long lastModified, String etag, String coding, FileChannel channel,
+              ByteBuf content, long checked) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.coding = coding;
+            this.channel = channel;
+            this.content = content;
+            this.checked = checked;
+        }
+
+        boolean missing() {
+            return length < 0;
+        }
+
+        long cachedBytes() {
+            return content == null ? 0 : content.capacity();
+        }
+
+        /**
+         * bytes of a cached file, retained for the caller.
+         */
+        ByteBuf slice(long offset, long count) {
+            return content.slice((int) offset, (int) count).retain();
+        }
+
+        /**
+         * a region of the shared channel, the entry stays open until the region is released.
+         */
+        FileRegion region(long offset, long count) {
+            retain();
+            return new DefaultFileRegion(channel, offset, count) {
+                @Override
+                protected void deallocate() {
+                    Entry.this.release();
+                }
+            };
+        }
+
+        @Override
+        public Entry retain() {
+            super.retain();
+            return this;
+        }
+
+        @Override
+        protected void deallocate() {
+            if (content != null) {
+                content.release();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.debug("failed to close {}", path, e);
+                }
+            }
+        }
+
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+    }
+}
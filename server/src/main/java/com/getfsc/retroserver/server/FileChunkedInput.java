@@ -0,0 +1,155 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import java.io.EOFException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午10:05
+ * <p>
+ * A range of a cached file for connections that can't take a FileRegion (tls, http/2). Chunks
+ * are read on the file reading pool into direct buffers, one chunk ahead of the writer, so the
+ * event loop never waits on the disk. {@link ChunkedWriteHandler} (or {@link Http2ResponseWriter}, per stream)
+ * only asks for the next chunk while the channel is writable, a slow client therefore holds one chunk
+ * and no reader thread.
+ * Reads are positional, the channel is shared with the other responses of the file.
+ */
+class FileChunkedInput implements ChunkedInput<ByteBuf> {
+
+    private final ChannelHandlerContext ctx;
+    private final Executor readers;
+    private final FileCache.Entry entry;
+    private final long start;
+    private final long end;
+    private final int chunkSize;
+    // all below is only touched on the event loop
+    private long offset;
+    private long readOffset;
+    private ByteBuf ready;
+    private Throwable error;
+    private boolean reading;
+    private boolean closed;
+
+    /**
+     * takes over the caller's reference of the entry.
+     */
+    FileChunkedInput(ChannelHandlerContext ctx, Executor readers, FileCache.Entry entry, long offset, long count,
+                     int chunkSize) {
+        this.ctx = ctx;
+        this.readers = readers;
+        this.entry = entry;
+        this.start = offset;
+        this.offset = offset;
+        this.readOffset = offset;
+        this.end = offset + count;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return offset >= end;
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (ready != null) {
+            ready.release();
+            ready = null;
+        }
+        // a read still running releases the entry when it is done with the channel
+        if (!reading) {
+            entry.release();
+        }
+    }
+
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (error != null) {
+            Throwable e = error;
+            throw e instanceof Exception ? (Exception) e : new RuntimeException(e);
+        }
+        ByteBuf buf = ready;
+        if (buf != null) {
+            ready = null;
+            offset += buf.readableBytes();
+        }
+        if (!reading && readOffset < end) {
+            read(allocator);
+        }
+        return buf;
+    }
+
+    private void read(ByteBufAllocator allocator) {
+        int size = (int) Math.min(chunkSize, end - readOffset);
+        long position = readOffset;
+        readOffset += size;
+        ByteBuf buf = allocator.directBuffer(size);
+        reading = true;
+        try {
+            readers.execute(() -> {
+                Throwable failure = null;
+                try {
+                    while (buf.isWritable()) {
+                        int read = entry.channel.read(buf.nioBuffer(buf.writerIndex(), buf.writableBytes()),
+                                position + buf.readableBytes());
+                        if (read < 0) {
+                            throw new EOFException(entry.path + " was truncated while being sent");
+                        }
+                        buf.writerIndex(buf.writerIndex() + read);
+                    }
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                Throwable cause = failure;
+                ctx.executor().execute(() -> readDone(buf, cause));
+            });
+        } catch (RejectedExecutionException e) {
+            reading = false;
+            buf.release();
+            error = e;
+        }
+    }
+
+    private void readDone(ByteBuf buf, Throwable cause) {
+        reading = false;
+        if (closed) {
+            buf.release();
+            entry.release();
+            return;
+        }
+        if (cause != null) {
+            buf.release();
+            error = cause;
+        } else {
+            ready = buf;
+        }
+        HttpStreamInput.resumeTransfer(ctx);
+    }
+
+    @Override
+    public long length() {
+        return end - start;
+    }
+
+    @Override
+    public long progress() {
+        return offset - start;
+    }
+}
@@ -0,0 +1,88 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.multipart.HttpData;
+import io.netty.handler.codec.http.multipart.HttpDataFactory;
+import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
+import io.netty.handler.codec.http.multipart.InterfaceHttpData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 27/10/18
+ * Time: 上午12:05
+ * <p>
+ * Form or multipart body, decoded as it arrives. Finished fields and parts are taken off the
+ * decoder after every chunk, which is where the part count and size limits are checked. A name
+ * may come several times ({@code <input type=file multiple>}), every part is kept.
+ */
+class FormBody {
+
+    private final HttpPostRequestDecoder decoder;
+    private final Map<String, List<HttpData>> fields = new HashMap<>();
+    private final long maxPartSize;
+    private final int maxParts;
+    private int parts;
+
+    FormBody(HttpDataFactory factory, HttpRequest request, long maxPartSize, int maxParts) {
+        this.decoder = new HttpPostRequestDecoder(factory, request);
+        this.maxPartSize = maxPartSize;
+        this.maxParts = maxParts;
+    }
+
+    /**
+     * @return false once a part is too large or there are too many of them
+     */
+    boolean offer(HttpContent content) {
+        decoder.offer(content);
+        try {
+            while (decoder.hasNext()) {
+                InterfaceHttpData data = decoder.next();
+                if (++parts > maxParts) {
+                    return false;
+                }
+                if (data instanceof HttpData) {
+                    fields.computeIfAbsent(data.getName(), name -> new ArrayList<>(1)).add((HttpData) data);
+                    // a part can start and end within one chunk, never seen as the partial one
+                    if (((HttpData) data).length() > maxPartSize) {
+                        return false;
+                    }
+                }
+            }
+        } catch (HttpPostRequestDecoder.EndOfDataDecoderException e) {
+            // all taken
+        }
+        InterfaceHttpData partial = decoder.currentPartialHttpData();
+        return !(partial instanceof HttpData) || ((HttpData) partial).length() <= maxPartSize;
+    }
+
+    /**
+     * the first field or part named name, or null.
+     */
+    HttpData get(String name) {
+        List<HttpData> named = fields.get(name);
+        return named == null ? null : named.get(0);
+    }
+
+    /**
+     * all fields and parts named name, in the order they came.
+     */
+    List<HttpData> getAll(String name) {
+        List<HttpData> named = fields.get(name);
+        return named == null ? Collections.emptyList() : named;
+    }
+
+    /**
+     * frees the fields kept in memory and deletes the temp files of parts that were not moved.
+     */
+    void destroy() {
+        decoder.destroy();
+    }
+}
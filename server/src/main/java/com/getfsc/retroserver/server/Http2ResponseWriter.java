@@ -0,0 +1,256 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2ConnectionAdapter;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2RemoteFlowController;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.collection.IntObjectHashMap;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午5:30
+ * <p>
+ * Writes the responses of {@link HttpServerHandler} to the stream of the request they answer, tagging
+ * them so the http/2 codec below knows where to send them. The handler sets the stream right before
+ * writing a response; the head and a whole body are written in that call.
+ * <p>
+ * Everything that outlives the call is kept per stream here, the connection wide handlers http/1 uses
+ * would mix the streams up: a chunked body ({@link ChunkedInput}) is written as data frames of its
+ * own stream while the stream's flow control window lets it, so a slow stream holds back no other;
+ * and responses are compressed by the Accept-Encoding of their own request, by {@link ResponseCompressor}.
+ */
+final class Http2ResponseWriter extends ChannelDuplexHandler {
+
+    private static final String STREAM_ID = HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text().toString();
+
+    private final ResponseCompressor compressor;
+    private final IntObjectHashMap<String> acceptEncodings = new IntObjectHashMap<>();
+    private final IntObjectHashMap<StreamWriter> writers = new IntObjectHashMap<>();
+    private ChannelHandlerContext ctx;
+    private ChannelHandlerContext codecCtx;
+    private Http2ConnectionHandler codec;
+    private int current;
+    // the content encoder of the response being written in the current call
+    private EmbeddedChannel encoding;
+
+    /**
+     * @param compressor the rules responses are compressed by, null to leave them as they are
+     */
+    Http2ResponseWriter(ResponseCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    static int streamId(HttpRequest request) {
+        return request.headers().getInt(STREAM_ID, 0);
+    }
+
+    void current(int streamId) {
+        current = streamId;
+        if (streamId == 0 && encoding != null) {
+            // the response was cut short
+            encoding.finishAndReleaseAll();
+            encoding = null;
+        }
+    }
+
+    /**
+     * writes what the chunked bodies have got ready, called by the inputs from any thread.
+     */
+    void resumeTransfer() {
+        if (!ctx.executor().inEventLoop()) {
+            ctx.executor().execute(this::resumeTransfer);
+            return;
+        }
+        for (StreamWriter writer : new ArrayList<>(writers.values())) {
+            writer.transfer();
+        }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        codec = ctx.pipeline().get(Http2ConnectionHandler.class);
+        codecCtx = ctx.pipeline().context(codec);
+        codec.encoder().flowController().listener(stream -> {
+            StreamWriter writer = writers.get(stream.id());
+            if (writer != null) {
+                writer.transfer();
+            }
+        });
+        codec.connection().addListener(new Http2ConnectionAdapter() {
+            @Override
+            public void onStreamClosed(Http2Stream stream) {
+                acceptEncodings.remove(stream.id());
+                StreamWriter writer = writers.get(stream.id());
+                if (writer != null) {
+                    // reset by the client, or the connection is gone
+                    writer.fail(new ClosedChannelException(), false);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (compressor != null && msg instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) msg;
+            // a HEAD response has no body to compress
+            if (!request.method().equals(HttpMethod.HEAD)) {
+                String acceptEncoding = request.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+                acceptEncodings.put(streamId(request), acceptEncoding == null ? "" : acceptEncoding);
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (current == 0) {
+            ctx.write(msg, promise);
+            return;
+        }
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            response.headers().setInt(STREAM_ID, current);
+            boolean leftAlone = ResponseCompressor.leftAlone(ctx.channel(), response);
+            String acceptEncoding = acceptEncodings.remove(current);
+            encoding = leftAlone || acceptEncoding == null ? null : compressor.encoder(response, acceptEncoding);
+        }
+        if (msg instanceof ChunkedInput) {
+            StreamWriter writer = new StreamWriter(current, (ChunkedInput<HttpContent>) msg, encoding, promise);
+            encoding = null;
+            writers.put(current, writer);
+            writer.transfer();
+            return;
+        }
+        if (encoding != null && msg instanceof HttpContent) {
+            EmbeddedChannel encoder = encoding;
+            if (msg instanceof LastHttpContent) {
+                encoding = null;
+            }
+            msg = ResponseCompressor.encode(ctx.alloc(), encoder, (HttpContent) msg);
+        }
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * the chunked body of one stream, its head is out already.
+     */
+    private final class StreamWriter {
+        private final int streamId;
+        private final ChunkedInput<HttpContent> input;
+        private final EmbeddedChannel encoder;
+        private final ChannelPromise promise;
+        private boolean transferring;
+        private boolean done;
+
+        StreamWriter(int streamId, ChunkedInput<HttpContent> input, EmbeddedChannel encoder, ChannelPromise promise) {
+            this.streamId = streamId;
+            this.input = input;
+            this.encoder = encoder;
+            this.promise = promise;
+        }
+
+        /**
+         * writes chunks while there are some ready and the stream may send them.
+         */
+        void transfer() {
+            // the flow controller calls back while data is written
+            if (transferring || done) {
+                return;
+            }
+            Http2Stream stream = codec.connection().stream(streamId);
+            if (stream == null) {
+                fail(new ClosedChannelException(), false);
+                return;
+            }
+            Http2RemoteFlowController flowController = codec.encoder().flowController();
+            transferring = true;
+            boolean wrote = false;
+            try {
+                while (!done && flowController.isWritable(stream)) {
+                    HttpContent chunk;
+                    try {
+                        chunk = input.readChunk(ctx);
+                    } catch (Exception e) {
+                        fail(e, true);
+                        return;
+                    }
+                    if (chunk == null) {
+                        // nothing ready, the input resumes the transfer
+                        break;
+                    }
+                    boolean last = chunk instanceof LastHttpContent;
+                    ByteBuf data = encoder == null ? chunk.content()
+                            : ResponseCompressor.encode(ctx.alloc(), encoder, chunk.content(), last);
+                    ChannelPromise written = last ? promise : codecCtx.newPromise();
+                    if (last) {
+                        finish();
+                    } else {
+                        written.addListener((ChannelFutureListener) future -> {
+                            if (!future.isSuccess()) {
+                                fail(future.cause(), false);
+                            }
+                        });
+                    }
+                    codec.encoder().writeData(codecCtx, streamId, data, 0, last, written);
+                    wrote = true;
+                }
+            } finally {
+                transferring = false;
+                if (wrote) {
+                    ctx.flush();
+                }
+            }
+        }
+
+        /**
+         * gives up on the body, resetting the stream if it is still open.
+         */
+        void fail(Throwable cause, boolean reset) {
+            if (done) {
+                return;
+            }
+            finish();
+            if (reset) {
+                codec.resetStream(codecCtx, streamId, Http2Error.INTERNAL_ERROR.code(), codecCtx.newPromise());
+                ctx.flush();
+            }
+            promise.tryFailure(cause);
+        }
+
+        private void finish() {
+            done = true;
+            writers.remove(streamId);
+            if (encoder != null) {
+                encoder.finishAndReleaseAll();
+            }
+            try {
+                input.close();
+            } catch (Exception e) {
+                // nothing left to do with it
+            }
+        }
+    }
+}
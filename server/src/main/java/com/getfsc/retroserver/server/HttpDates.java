@@ -0,0 +1,67 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午7:10
+ * <p>
+ * http dates. The Date header of the current second is formatted once per event loop thread
+ * and reused by every response written in that second.
+ */
+final class HttpDates {
+
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static final FastThreadLocal<HttpDates> CURRENT = new FastThreadLocal<HttpDates>() {
+        @Override
+        protected HttpDates initialValue() {
+            return new HttpDates();
+        }
+    };
+
+    private long second = Long.MIN_VALUE;
+    private AsciiString value;
+
+    private HttpDates() {
+    }
+
+    static AsciiString now() {
+        return CURRENT.get().current();
+    }
+
+    static String format(long millis) {
+        return FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * @return the time in millis, or -1 if it is not an http date.
+     */
+    static long parse(String date) {
+        try {
+            return ZonedDateTime.parse(date, FORMAT).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private AsciiString current() {
+        long now = System.currentTimeMillis() / 1000;
+        if (now != second) {
+            second = now;
+            value = new AsciiString(FORMAT.format(Instant.ofEpochSecond(now)));
+        }
+        return value;
+    }
+}
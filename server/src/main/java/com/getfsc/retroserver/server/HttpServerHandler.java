@@ -16,60 +16,174 @@
 package com.getfsc.retroserver.server;
 
 import com.getfsc.retroserver.*;
-import com.getfsc.retroserver.aop.AopFactory;
+import com.getfsc.retroserver.aop.AopChain;
 import com.getfsc.retroserver.aop.AopInterceptor;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
 import io.netty.handler.codec.http.multipart.HttpDataFactory;
 import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
-import io.netty.handler.codec.http.router.RouteResult;
-import io.netty.handler.codec.http.router.Router;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.AsciiString;
 import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 import retrofit2.Call;
 
-import java.util.List;
-import java.util.stream.Collectors;
+import java.nio.channels.ClosedChannelException;
 
+import static io.netty.handler.codec.http.HttpHeaderNames.CONNECTION;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpHeaderNames.DATE;
 import static io.netty.handler.codec.http.HttpResponseStatus.*;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
 public class HttpServerHandler extends SimpleChannelInboundHandler<Object> {
 
     private static final InternalLogger log = InternalLoggerFactory.getInstance(HttpServerHandler.class);
+    private static final AsciiString TEXT_TYPE = new AsciiString("text/plain; charset=UTF-8");
+    private static final String STREAM_ID = HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text().toString();
 
 
     private HttpRequest request;
-    private Router<Route> router;
-    private RouteResult<Route> routeResult;
-    private HttpPostRequestDecoder decoder;
+    private RouteTable routeTable;
+    private BlockingExecutor blockingExecutor;
+    private ConnectionStats stats;
+    private StaticFiles staticFiles;
+    private ServerOptions options;
+    private int maxPipelined;
+    private long maxBodySize;
+    private HttpDataFactory factory;
+    private long maxPartSize;
+    private int maxParts;
+    private RouteMatch routeResult;
+    private FormBody form;
     private CompositeByteBuf contentBuffer;
+    private RequestBodyStream stream;
+    private long bodySize;
+    private boolean tooLarge;
+    private boolean malformed;
+    private int seq;
+    private int served;
+    private final ResponseSequencer sequencer = new ResponseSequencer();
+    private Http2ResponseWriter http2Writer;
 
 
     private void reset() {
         routeResult = null;
-        /*if (contentBuffer != null)
-            contentBuffer.release();*/
         contentBuffer = null;
-
-        decoder = null;
+        form = null;
+        stream = null;
         request = null;
+        bodySize = 0;
+        tooLarge = false;
+        malformed = false;
+    }
+
+    /**
+     * frees the body of a request that is not handed to a {@link ServerRequestImpl}.
+     */
+    private void releaseContent() {
+        discardContent();
+        reset();
+    }
+
+    private void discardContent() {
+        if (contentBuffer != null) {
+            contentBuffer.release();
+            contentBuffer = null;
+        }
+        if (form != null) {
+            form.destroy();
+            form = null;
+        }
+    }
+
+    public HttpServerHandler(RouteTable routeTable, BlockingExecutor blockingExecutor, ConnectionStats stats,
+                             StaticFiles staticFiles, ServerOptions options) {
+        this.routeTable = routeTable;
+        this.blockingExecutor = blockingExecutor;
+        this.stats = stats;
+        this.staticFiles = staticFiles;
+        this.options = options;
+        this.maxPipelined = Math.max(1, options.maxPipelinedRequests());
+        this.maxBodySize = options.maxBodySize();
+        // form fields and parts up to the threshold stay in memory, bigger ones go to disk
+        this.factory = new DefaultHttpDataFactory(options.multipartMemoryThreshold());
+        this.maxPartSize = options.maxPartSize();
+        this.maxParts = options.maxParts();
+    }
+
+    /**
+     * a route's {@link com.getfsc.retroserver.annotation.MultipartConfig} wins over the server's limits.
+     */
+    private FormBody newForm(HttpRequest request) {
+        Route route = routeResult.target();
+        HttpDataFactory routeFactory = routeResult.dataFactory();
+        return new FormBody(routeFactory == null ? factory : routeFactory, request,
+                route.getMaxPartSize() < 0 ? maxPartSize : route.getMaxPartSize(),
+                route.getMaxParts() < 0 ? maxParts : route.getMaxParts());
+    }
+
+    /**
+     * switches to http/2: requests arrive per stream and are answered as soon as they are done,
+     * {@code seq} is the stream id instead of the position on the connection. the connection wide
+     * compressor and chunked writer would mix the streams' responses up, {@link Http2ResponseWriter}
+     * does both per stream.
+     */
+    void useStreams(ChannelHandlerContext ctx) {
+        ChannelPipeline p = ctx.pipeline();
+        ResponseCompressor compressor = p.get(ResponseCompressor.class);
+        if (compressor != null) {
+            p.remove(compressor);
+        }
+        if (p.get(ChunkedWriteHandler.class) != null) {
+            p.remove(ChunkedWriteHandler.class);
+        }
+        http2Writer = new Http2ResponseWriter(compressor);
+        p.addBefore(ctx.name(), null, http2Writer);
     }
 
-    public HttpServerHandler(Router<Route> router) {
-        this.router = router;
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        // after alpn the handler only joins once the channel is active
+        stats.connectionOpened();
+        super.handlerAdded(ctx);
     }
 
-    private static final HttpDataFactory factory =
-            new DefaultHttpDataFactory(DefaultHttpDataFactory.MINSIZE);
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent) {
+            // h2c upgrade, the request that asked for it is answered on stream 1. it goes round the
+            // pipeline again so the handlers in front (the compressor) see it like any other request
+            useStreams(ctx);
+            FullHttpRequest upgradeRequest = ((HttpServerUpgradeHandler.UpgradeEvent) evt).upgradeRequest().retain();
+            upgradeRequest.headers().setInt(STREAM_ID, Http2CodecUtil.HTTP_UPGRADE_STREAM_ID);
+            ctx.pipeline().fireChannelRead(upgradeRequest);
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        stats.connectionClosed();
+        if (stream != null) {
+            stream.fail(new ClosedChannelException());
+        }
+        releaseContent();
+        super.channelInactive(ctx);
+    }
 
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) {
@@ -81,18 +195,37 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<Object> {
         if (msg instanceof HttpRequest) {
             HttpRequest request = this.request = (HttpRequest) msg;
 
-            if (HttpUtil.is100ContinueExpected(request)) {
+            if (http2Writer != null) {
+                stats.request(served++ > 0, false);
+                seq = Http2ResponseWriter.streamId(request);
+            } else {
+                boolean pipelined = sequencer.inFlight() > 0;
+                stats.request(served++ > 0, pipelined);
+                seq = sequencer.next();
+            }
+
+            routeResult = routeTable.route(request.method(), request.uri());
+            BodyType bodyType = routeResult.target().getBodyType();
+            if (bodyType == null) bodyType = BodyType.DEFAULT;
+            if (bodyType != BodyType.STREAM && HttpUtil.getContentLength(request, -1L) > maxBodySize) {
+                // refused before the client sends it, with 100-continue
+                tooLarge(ctx);
+            } else if (http2Writer == null && sequencer.inFlight() == 1 && HttpUtil.is100ContinueExpected(request)) {
+                // an interim response would overtake the pending ones, the client sends the body after its timeout
                 send100Continue(ctx);
             }
 
-            routeResult = router.route(request.method(), request.uri());
-            if (request.method().equals(HttpMethod.POST) || request.method().equals(HttpMethod.PUT)) {
-                BodyType bodyType = routeResult.target().getBodyType();
-                if (bodyType == null) bodyType = BodyType.DEFAULT;
+            if (tooLarge) {
+                // nothing to collect
+            } else if (bodyType == BodyType.STREAM) {
+                // the controller runs now and reads the body as it arrives
+                stream = new RequestBodyStream(ctx, () -> resumeReading(ctx));
+                dispatch(ctx, seq, routeResult.target(), HttpUtil.isKeepAlive(request));
+            } else if (request.method().equals(HttpMethod.POST) || request.method().equals(HttpMethod.PUT)) {
                 switch (bodyType) {
                     case FORM_URL_ENCODED:
                     case MULTIPART:
-                        decoder = new HttpPostRequestDecoder(factory, request);
+                        form = newForm(request);
                         break;
                     default:
                         contentBuffer = ctx.alloc().compositeBuffer();
@@ -102,13 +235,24 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<Object> {
         if (msg instanceof HttpContent) {
             HttpContent httpContent = (HttpContent) msg;
 
-            if (decoder != null) {
+            if (stream != null) {
+                stream.offer(httpContent.content(), msg instanceof LastHttpContent);
+            } else if (tooLarge) {
+                // discarded, the connection is closed once the 413 is out
+            } else if ((bodySize += httpContent.content().readableBytes()) > maxBodySize) {
+                discardContent();
+                tooLarge(ctx);
+            } else if (form != null) {
                 try {
-                    decoder.offer(httpContent);
+                    if (!form.offer(httpContent)) {
+                        discardContent();
+                        tooLarge(ctx);
+                    }
                 } catch (HttpPostRequestDecoder.ErrorDataDecoderException e1) {
                     log.error(e1);
-                    badRequest(ctx);
-                    return;
+                    form.destroy();
+                    form = null;
+                    malformed = true;
                 }
             } else if (contentBuffer != null) {
                 ByteBuf content = httpContent.content();
@@ -118,90 +262,183 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<Object> {
             // readHttpDataChunkByChunk();
 
             if (msg instanceof LastHttpContent) {
+                int seq = this.seq;
                 Route route = routeResult.target();
+                boolean keepAlive = HttpUtil.isKeepAlive(request);
 
-                if (route == Route.NotFound) {
-                    sendNotFound(ctx);
-                    reset();
+                if (stream != null || tooLarge) {
+                    // already dispatched or answered
+                } else if (malformed) {
+                    releaseContent();
+                    respond(ctx, seq, () -> badRequest(ctx));
+                } else if (route == Route.NotFound) {
+                    releaseContent();
+                    respond(ctx, seq, () -> sendError(ctx, NOT_FOUND, keepAlive));
                 } else {
-                    ServerRequestImpl req = new ServerRequestImpl(request, decoder,
-                            contentBuffer, routeResult, new DefaultHttpResponse(HTTP_1_1, OK));
-                    try {
-                        List<AopInterceptor> aops = route.getAopFactories().stream().map(AopFactory::create)
-                                .collect(Collectors.toList());
-                        Call call = null;
-                        if (aops.stream().allMatch(aop -> aop.beforeInvoke(req))) {
-                            call = route.getCaller().call(req);
-                        }
-                        if (call == null) {
-                            aopResponse(aops, req);
-                            if (req.response().code() == -1) {
-                                sendNotFound(ctx);
-                            } else {
-                                req.handleResponse(ctx);
-                                reset();
-                            }
-                            aops.forEach(AopInterceptor::destory);
-                        } else if (call instanceof DirectCall) {
-                            DirectCall directCall = (DirectCall) call;
-                            directCall.setRequest(req);
-                            try {
-                                directCall.execute();
-                                req.handleResponse(ctx);
-                            } finally {
-                                req.destroy();
-                                aops.forEach(AopInterceptor::destory);
-                                reset();
-                            }
-
-                        } else if (call instanceof AsyncCall) {
-                            ((AsyncCall) call).executeAsync(new Callback() {
-                                @Override
-                                public void done(Object o) {
-                                    try {
-                                        req.handleResponse(context);
-                                    } finally {
-                                        req.destroy();
-                                        aops.forEach(AopInterceptor::destory);
-                                    }
-                                }
-
-                                @Override
-                                public void failed(Exception e, Object message) {
-                                    try {
-                                        req.handleError(context, e, message);
-                                    } finally {
-                                        req.destroy();
-                                        aops.forEach(AopInterceptor::destory);
-                                    }
-                                }
-
-                                private final ChannelHandlerContext context = ctx;
-
-                            });
-                            reset();
-                        }
-                    } catch (Exception e) {
-                        req.handleError(ctx, e, null);
-                        reset();
+                    dispatch(ctx, seq, route, keepAlive);
+                }
+                reset();
+                if (http2Writer == null && sequencer.inFlight() >= maxPipelined) {
+                    // stop reading until the responses in front are written. only now, the body of this
+                    // request had to come in first or it could never be answered
+                    ctx.channel().config().setAutoRead(false);
+                }
+            }
+        }
+    }
+
+    private void dispatch(ChannelHandlerContext ctx, int seq, Route route, boolean keepAlive) {
+        ServerRequestImpl req = new ServerRequestImpl(request, form, contentBuffer, stream,
+                routeResult, new DefaultHttpResponse(HTTP_1_1, OK), blockingExecutor, staticFiles, options);
+        if (route.isBlocking()) {
+            if (!blockingExecutor.execute(() -> invoke(ctx, seq, route, req))) {
+                req.destroy();
+                respond(ctx, seq, () -> sendError(ctx, SERVICE_UNAVAILABLE, keepAlive));
+            }
+        } else {
+            invoke(ctx, seq, route, req);
+        }
+    }
+
+    /**
+     * answers 413 right away. the rest of the body is not worth reading, http/1 closes the connection.
+     */
+    private void tooLarge(ChannelHandlerContext ctx) {
+        tooLarge = true;
+        boolean keepAlive = http2Writer != null;
+        respond(ctx, seq, () -> sendError(ctx, REQUEST_ENTITY_TOO_LARGE, keepAlive));
+    }
+
+    /**
+     * runs the aops and the controller, on the event loop or on the blocking executor.
+     * the response is always written back on the channel's event loop, in request order.
+     */
+    private void invoke(ChannelHandlerContext ctx, int seq, Route route, ServerRequestImpl req) {
+        AopChain chain = route.getAopChain();
+        AopInterceptor[] aops = chain.open();
+        try {
+            Call call = null;
+            if (chain.beforeInvoke(aops, req)) {
+                call = route.getCaller().call(req);
+            }
+            if (call == null) {
+                complete(ctx, seq, req, chain, aops, () -> {
+                    if (req.response().code() == -1) {
+                        sendError(ctx, NOT_FOUND, req.isKeepAlive());
+                    } else {
+                        req.handleResponse(ctx);
+                    }
+                });
+            } else if (call instanceof DirectCall) {
+                DirectCall directCall = (DirectCall) call;
+                directCall.setRequest(req);
+                directCall.execute();
+                completeResponse(ctx, seq, req, chain, aops);
+            } else if (call instanceof AsyncCall) {
+                AsyncCall asyncCall = (AsyncCall) call;
+                asyncCall.setRequest(req);
+                asyncCall.executeAsync(new Callback() {
+                    @Override
+                    public void done(Object o) {
+                        completeResponse(ctx, seq, req, chain, aops);
                     }
+
+                    @Override
+                    public void failed(Exception e, Object message) {
+                        complete(ctx, seq, req, chain, aops, () -> req.handleError(ctx, e, message));
+                    }
+                });
+            }
+        } catch (IllegalArgumentException e) {
+            // the generated caller rejects a param that is missing or doesn't parse
+            complete(ctx, seq, req, chain, aops, () -> req.handleError(ctx, BAD_REQUEST, e, null));
+        } catch (Exception e) {
+            complete(ctx, seq, req, chain, aops, () -> req.handleError(ctx, e, null));
+        }
+    }
+
+    /**
+     * completes with the controller's response. a File body is looked up first, on the file reading
+     * threads if it isn't cached, and the response waits for it in its place.
+     */
+    private void completeResponse(ChannelHandlerContext ctx, int seq, ServerRequestImpl req, AopChain chain,
+                                  AopInterceptor[] aops) {
+        Future<FileCache.Entry> lookup = req.lookupFile(ctx);
+        if (lookup == null || lookup.isDone()) {
+            complete(ctx, seq, req, chain, aops, () -> req.handleResponse(ctx));
+        } else {
+            lookup.addListener((FutureListener<FileCache.Entry>) future ->
+                    complete(ctx, seq, req, chain, aops, () -> req.handleResponse(ctx)));
+        }
+    }
+
+    private void complete(ChannelHandlerContext ctx, int seq, ServerRequestImpl req, AopChain chain,
+                          AopInterceptor[] aops, Runnable write) {
+        respond(ctx, seq, () -> {
+            try {
+                // every request the chain was opened for gets its afterInvoke, on the event loop
+                try {
+                    chain.afterInvoke(aops, req);
+                } catch (RuntimeException e) {
+                    req.handleError(ctx, e, null);
+                    return;
                 }
+                write.run();
+            } finally {
+                req.destroy();
+                chain.destroy(aops);
             }
+        });
+    }
+
+    /**
+     * writes the response of request {@code seq} once all earlier ones on this connection are written,
+     * or right away on http/2.
+     */
+    private void respond(ChannelHandlerContext ctx, int seq, Runnable write) {
+        if (!ctx.executor().inEventLoop()) {
+            ctx.executor().execute(() -> respond(ctx, seq, write));
+            return;
+        }
+        if (http2Writer != null) {
+            http2Writer.current(seq);
+            try {
+                write.run();
+            } finally {
+                http2Writer.current(0);
+            }
+            return;
         }
+        sequencer.complete(seq, write);
+        resumeReading(ctx);
     }
 
-    private void aopResponse(List<AopInterceptor> aops, ServerRequestImpl req) {
-        for (AopInterceptor aop : aops) {
-            aop.afterInvoke(req);
+    /**
+     * reading is off while too many responses are pending or a body stream can't take more.
+     */
+    private void resumeReading(ChannelHandlerContext ctx) {
+        ChannelConfig config = ctx.channel().config();
+        // the pending responses don't hold back the body of the request being read, only the next request
+        boolean readingBody = request != null;
+        if (!config.isAutoRead() && (readingBody || sequencer.inFlight() < maxPipelined)
+                && (stream == null || !stream.holdsReading())) {
+            config.setAutoRead(true);
         }
     }
 
-    private void sendNotFound(ChannelHandlerContext ctx) {
+    static void sendError(ChannelHandlerContext ctx, HttpResponseStatus status, boolean keepAlive) {
         FullHttpResponse response = new DefaultFullHttpResponse(
-                HTTP_1_1, NOT_FOUND, Unpooled.copiedBuffer("Failure: " + NOT_FOUND + "\r\n", CharsetUtil.UTF_8));
-        response.headers().set(CONTENT_TYPE, "text/plain; charset=UTF-8");
-        // Close the connection as soon as the error message is sent.
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                HTTP_1_1, status, Unpooled.copiedBuffer("Failure: " + status + "\r\n", CharsetUtil.UTF_8));
+        response.headers().set(CONTENT_TYPE, TEXT_TYPE);
+        response.headers().set(DATE, HttpDates.now());
+        HttpUtil.setContentLength(response, response.content().readableBytes());
+        if (keepAlive) {
+            ctx.writeAndFlush(response);
+        } else {
+            // Close the connection as soon as the error message is sent.
+            response.headers().set(CONNECTION, HttpHeaderValues.CLOSE);
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
     }
 
 
@@ -209,7 +446,6 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<Object> {
         FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, BAD_REQUEST);
         ctx.write(response);
         ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
-        reset();
     }
 
 
@@ -222,6 +458,6 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<Object> {
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.error(cause);
         ctx.close();
-        reset();
+        releaseContent();
     }
 }
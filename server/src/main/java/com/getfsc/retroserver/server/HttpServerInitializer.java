@@ -15,23 +15,68 @@
  */
 package com.getfsc.retroserver.server;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.http.BadClientSilencer;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
-import io.netty.handler.codec.http.router.Router;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.InboundHttp2ToHttpAdapter;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.AsciiString;
+
+import java.util.List;
+import java.util.Set;
 
 public class HttpServerInitializer extends ChannelInitializer<SocketChannel> {
 
+    private static final ByteBuf PREFACE = Http2CodecUtil.connectionPrefaceBuf();
+    private static final int MAX_UPGRADE_CONTENT_LENGTH = 64 * 1024;
+
     private final SslContext sslCtx;
-    private Router router;
+    private final RouteTable routeTable;
+    private final BlockingExecutor blockingExecutor;
+    private final ConnectionStats stats;
+    private final StaticFiles staticFiles;
+    private final ServerOptions options;
+    private final boolean http2;
+    private final int http2MaxContentLength;
+    private final Set<String> compressibleTypes;
 
-    public HttpServerInitializer(SslContext sslCtx, Router router) {
+    public HttpServerInitializer(SslContext sslCtx, RouteTable routeTable, BlockingExecutor blockingExecutor,
+                                 ConnectionStats stats, StaticFiles staticFiles, ServerOptions options) {
         this.sslCtx = sslCtx;
-        this.router = router;
+        this.routeTable = routeTable;
+        this.blockingExecutor = blockingExecutor;
+        this.stats = stats;
+        this.staticFiles = staticFiles;
+        this.options = options;
+        this.http2 = options.http2();
+        this.http2MaxContentLength = options.http2MaxContentLength();
+        this.compressibleTypes = options.compression() ? options.compressibleTypes() : null;
     }
 
     private final BadClientSilencer badClientSilencer = new BadClientSilencer();
@@ -42,14 +87,189 @@ public class HttpServerInitializer extends ChannelInitializer<SocketChannel> {
         ChannelPipeline p = ch.pipeline();
         if (sslCtx != null) {
             p.addLast(sslCtx.newHandler(ch.alloc()));
+            if (http2) {
+                // the protocol is known once the handshake picked it
+                p.addLast(new AlpnHandler());
+                return;
+            }
+        } else if (http2) {
+            // h2c: http/1.1 with Upgrade, or straight http/2 if the client starts with the preface
+            HttpServerCodec codec = new HttpServerCodec();
+            p.addLast(new PrefaceDetector());
+            p.addLast("codec", codec);
+            p.addLast("upgrade", new HttpServerUpgradeHandler(codec, protocol ->
+                    AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)
+                            ? new Http2ServerUpgradeCodec(newHttp2Handler()) : null,
+                    MAX_UPGRADE_CONTENT_LENGTH));
+            addCompressor(p);
+            p.addLast(new ChunkedWriteHandler());
+            p.addLast(newHandler());
+            p.addLast(badClientSilencer);
+            return;
         }
+        configureHttp1(p);
+    }
+
+    private void configureHttp1(ChannelPipeline p) {
         p.addLast(new HttpRequestDecoder());
         // Uncomment the following line if you don't want to handle HttpChunks.
         //p.addLast(new HttpObjectAggregator(1048576));
         p.addLast(new HttpResponseEncoder());
-        // Remove the following line if you don't want automatic content compression.
-        //p.addLast(new HttpContentCompressor());
-        p.addLast(new HttpServerHandler(router));
+        addCompressor(p);
+        p.addLast(new ChunkedWriteHandler());
+        p.addLast(newHandler());
+        p.addLast(badClientSilencer);
+    }
+
+    private void configureHttp2(ChannelPipeline p) {
+        p.addLast(newHttp2Handler());
+        // taken over per stream by the handler
+        addCompressor(p);
+        HttpServerHandler handler = newHandler();
+        p.addLast(handler);
         p.addLast(badClientSilencer);
+        handler.useStreams(p.context(handler));
+    }
+
+    private HttpServerHandler newHandler() {
+        return new HttpServerHandler(routeTable, blockingExecutor, stats, staticFiles, options);
+    }
+
+    private void addCompressor(ChannelPipeline p) {
+        if (compressibleTypes != null) {
+            p.addLast(new ResponseCompressor(options.compressionLevel(), options.compressionMinSize(),
+                    compressibleTypes));
+        }
+    }
+
+    /**
+     * streams come up as full http/1.1 requests tagged with their stream id, responses go back the same way.
+     */
+    private HttpToHttp2ConnectionHandler newHttp2Handler() {
+        DefaultHttp2Connection connection = new DefaultHttp2Connection(true);
+        // what InboundHttp2ToHttpAdapterBuilder builds, but it can't build a subclass
+        InboundHttp2ToHttpAdapter listener = new RequestAdapter(connection, http2MaxContentLength, false, false);
+        return new HttpToHttp2ConnectionHandlerBuilder()
+                .connection(connection)
+                .frameListener(listener)
+                .build();
+    }
+
+    /**
+     * the adapter, with two things the handler can't do for a stream:
+     * <ul>
+     * <li>{@code Expect: 100-continue} is answered as soon as the headers of a stream are in. the adapter
+     * would send such a request up twice, once right away for the handler to answer and once with its
+     * body; the handler takes every request as a whole one, so the header is taken off and answered here.
+     * a body longer than the adapter takes is not asked for;</li>
+     * <li>a stream reset by the client is only dropped. the adapter would raise it as an exception, which
+     * closes the connection with all the other streams.</li>
+     * </ul>
+     */
+    private static class RequestAdapter extends InboundHttp2ToHttpAdapter {
+
+        private static final Http2Headers CONTINUE_HEADERS = new DefaultHttp2Headers()
+                .status(HttpResponseStatus.CONTINUE.codeAsText());
+
+        private final int maxContentLength;
+
+        RequestAdapter(Http2Connection connection, int maxContentLength, boolean validateHttpHeaders,
+                        boolean propagateSettings) {
+            super(connection, maxContentLength, validateHttpHeaders, propagateSettings);
+            this.maxContentLength = maxContentLength;
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int padding,
+                                  boolean endOfStream) throws Http2Exception {
+            boolean sendContinue = takeExpectation(streamId, headers, endOfStream);
+            super.onHeadersRead(ctx, streamId, headers, padding, endOfStream);
+            if (sendContinue) {
+                sendContinue(ctx, streamId);
+            }
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int streamDependency,
+                                  short weight, boolean exclusive, int padding, boolean endOfStream)
+                throws Http2Exception {
+            boolean sendContinue = takeExpectation(streamId, headers, endOfStream);
+            super.onHeadersRead(ctx, streamId, headers, streamDependency, weight, exclusive, padding, endOfStream);
+            if (sendContinue) {
+                sendContinue(ctx, streamId);
+            }
+        }
+
+        /**
+         * @return whether the client waits for a 100 before sending the body
+         */
+        private boolean takeExpectation(int streamId, Http2Headers headers, boolean endOfStream) {
+            Http2Stream stream = connection.stream(streamId);
+            CharSequence expect = headers.get(HttpHeaderNames.EXPECT);
+            // trailers come after the body
+            if (stream == null || getMessage(stream) != null
+                    || expect == null || !HttpHeaderValues.CONTINUE.contentEqualsIgnoreCase(expect)) {
+                return false;
+            }
+            headers.remove(HttpHeaderNames.EXPECT);
+            Long length = headers.getLong(HttpHeaderNames.CONTENT_LENGTH);
+            return !endOfStream && (length == null || length <= maxContentLength);
+        }
+
+        @Override
+        public void onRstStreamRead(ChannelHandlerContext ctx, int streamId, long errorCode) {
+            Http2Stream stream = connection.stream(streamId);
+            FullHttpMessage message = stream == null ? null : getMessage(stream);
+            if (message != null) {
+                onRstStreamRead(stream, message);
+            }
+        }
+
+        private static void sendContinue(ChannelHandlerContext ctx, int streamId) {
+            // flushed once the read is done
+            ((Http2ConnectionHandler) ctx.handler()).encoder()
+                    .writeHeaders(ctx, streamId, CONTINUE_HEADERS, 0, false, ctx.newPromise());
+        }
+    }
+
+    private class AlpnHandler extends ApplicationProtocolNegotiationHandler {
+
+        AlpnHandler() {
+            super(ApplicationProtocolNames.HTTP_1_1);
+        }
+
+        @Override
+        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+            if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                configureHttp2(ctx.pipeline());
+            } else if (ApplicationProtocolNames.HTTP_1_1.equals(protocol)) {
+                configureHttp1(ctx.pipeline());
+            } else {
+                throw new IllegalStateException("unknown protocol: " + protocol);
+            }
+        }
+    }
+
+    /**
+     * looks at the first bytes of a cleartext connection, takes the http/1.1 handlers out
+     * when they are the http/2 connection preface and then gets out of the way.
+     */
+    private class PrefaceDetector extends ByteToMessageDecoder {
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            int length = Math.min(in.readableBytes(), PREFACE.readableBytes());
+            if (ByteBufUtil.equals(in, in.readerIndex(), PREFACE, PREFACE.readerIndex(), length)) {
+                if (length < PREFACE.readableBytes()) {
+                    return;
+                }
+                ChannelPipeline p = ctx.pipeline();
+                p.replace("codec", null, newHttp2Handler());
+                p.remove("upgrade");
+                HttpServerHandler handler = p.get(HttpServerHandler.class);
+                handler.useStreams(p.context(handler));
+            }
+            ctx.pipeline().remove(this);
+        }
     }
 }
@@ -0,0 +1,85 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午9:05
+ * <p>
+ * Like netty's HttpChunkedInput, but lets the wrapped input have nothing to give yet (a Publisher
+ * that has not emitted), which HttpChunkedInput would wrap into an empty content and fail on.
+ */
+class HttpStreamInput implements ChunkedInput<HttpContent> {
+
+    private final ChunkedInput<ByteBuf> input;
+    private boolean sentLast;
+
+    HttpStreamInput(ChunkedInput<ByteBuf> input) {
+        this.input = input;
+    }
+
+    /**
+     * asks whoever writes the streamed bodies of the channel for the chunks that got ready meanwhile,
+     * {@link ChunkedWriteHandler} on http/1, {@link Http2ResponseWriter} on http/2.
+     */
+    static void resumeTransfer(ChannelHandlerContext ctx) {
+        ChunkedWriteHandler writer = ctx.pipeline().get(ChunkedWriteHandler.class);
+        if (writer != null) {
+            writer.resumeTransfer();
+            return;
+        }
+        Http2ResponseWriter http2Writer = ctx.pipeline().get(Http2ResponseWriter.class);
+        if (http2Writer != null) {
+            http2Writer.resumeTransfer();
+        }
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return sentLast;
+    }
+
+    @Override
+    public void close() throws Exception {
+        input.close();
+    }
+
+    @Override
+    public HttpContent readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    public HttpContent readChunk(ByteBufAllocator allocator) throws Exception {
+        if (sentLast) {
+            return null;
+        }
+        if (input.isEndOfInput()) {
+            sentLast = true;
+            return LastHttpContent.EMPTY_LAST_CONTENT;
+        }
+        ByteBuf buf = input.readChunk(allocator);
+        if (buf == null) {
+            return null;
+        }
+        return new DefaultHttpContent(buf);
+    }
+
+    @Override
+    public long length() {
+        return input.length();
+    }
+
+    @Override
+    public long progress() {
+        return input.progress();
+    }
+}
@@ -0,0 +1,90 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.util.Iterator;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午8:35
+ * <p>
+ * Pulls items from an Iterator (or a Stream's) into chunks of about {@code chunkSize} bytes.
+ * {@link io.netty.handler.stream.ChunkedWriteHandler} only asks for the next chunk while the channel
+ * is writable, so a slow client holds back the iteration instead of filling the heap.
+ */
+class IteratorChunkedInput implements ChunkedInput<ByteBuf> {
+
+    private final Iterator<?> items;
+    private final AutoCloseable source;
+    private final StreamFormat format;
+    private final int chunkSize;
+    private boolean opened;
+    private boolean first = true;
+    private boolean ended;
+    private long progress;
+
+    IteratorChunkedInput(Iterator<?> items, AutoCloseable source, StreamFormat format, int chunkSize) {
+        this.items = items;
+        this.source = source;
+        this.format = format;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return ended;
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (ended) {
+            return null;
+        }
+        ByteBuf chunk = allocator.buffer(chunkSize);
+        try {
+            if (!opened) {
+                format.open(chunk);
+                opened = true;
+            }
+            while (chunk.readableBytes() < chunkSize && items.hasNext()) {
+                format.item(items.next(), first, chunk);
+                first = false;
+            }
+            if (!items.hasNext()) {
+                format.close(chunk);
+                ended = true;
+            }
+        } catch (Throwable e) {
+            chunk.release();
+            throw e;
+        }
+        progress += chunk.readableBytes();
+        return chunk;
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+}
@@ -2,23 +2,42 @@ package com.getfsc.retroserver.server;
 
 import com.getfsc.retroserver.Route;
 import com.getfsc.retroserver.aop.AopFactoryHub;
+import com.getfsc.retroserver.util.StringUtil;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.router.Router;
+import io.netty.handler.codec.http.multipart.DiskAttribute;
+import io.netty.handler.codec.http.multipart.DiskFileUpload;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -44,32 +63,49 @@ public class NettyServer {
 
     public void start() {
         try {
-            Router<Route> router = new Router<>();
+            RouteTable routeTable = new RouteTable();
 
-            installRoutes(router);
+            installRoutes(routeTable);
 
-            final SslContext sslCtx;
-            if (options.ssl()) {
-                SelfSignedCertificate ssc = new SelfSignedCertificate();
-                sslCtx = SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey()).build();
+            final SslContext sslCtx = options.ssl() ? sslContext() : null;
+
+            // Configure the server.
+            boolean epoll = useEpoll();
+            int acceptors = epoll ? Math.max(1, options.acceptors()) : 1;
+            int bossThreads = Math.max(options.bossThreads(), acceptors);
+            Class<? extends ServerChannel> channelClass;
+            if (epoll) {
+                bossGroup = new EpollEventLoopGroup(bossThreads);
+                workerGroup = new EpollEventLoopGroup(options.workerThreads());
+                channelClass = EpollServerSocketChannel.class;
             } else {
-                sslCtx = null;
+                bossGroup = new NioEventLoopGroup(bossThreads);
+                workerGroup = new NioEventLoopGroup(options.workerThreads());
+                channelClass = NioServerSocketChannel.class;
             }
+            log.info("using {} transport with {} acceptor(s)", epoll ? "epoll" : "nio", acceptors);
+            blockingExecutor = new BlockingExecutor(options.blockingThreads(), options.blockingQueueSize());
+            staticFiles = new StaticFiles(options);
+            configureUploads();
 
-            // Configure the server.
-            bossGroup = new NioEventLoopGroup(1);
-            workerGroup = new NioEventLoopGroup();
             ServerBootstrap b = new ServerBootstrap();
             b.option(ChannelOption.SO_BACKLOG, 1024);
             b.option(ChannelOption.SO_REUSEADDR, true);
+            if (acceptors > 1) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
             b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(channelClass)
                     .handler(new LoggingHandler(LogLevel.INFO))
-                    .childHandler(new HttpServerInitializer(sslCtx, router));
+                    .childHandler(new HttpServerInitializer(sslCtx, routeTable, blockingExecutor,
+                            connectionStats, staticFiles, options));
             b.childOption(ChannelOption.ALLOCATOR, new PooledByteBufAllocator(true));
             b.childOption(ChannelOption.SO_REUSEADDR, true);
 
-            ch = b.bind(options.getPort()).sync().channel();
+            // with SO_REUSEPORT every bind gets its own listening socket on its own boss thread
+            for (int i = 0; i < acceptors; i++) {
+                channels.add(b.bind(options.getPort()).sync().channel());
+            }
 
             System.err.println("Open your web browser and navigate to " +
                     (options.ssl() ? "https" : "http") + "://127.0.0.1:" + options.getPort() + '/');
@@ -78,49 +114,180 @@ public class NettyServer {
         }
     }
 
-    private void installRoutes(Router<Route> router) {
+    private void installRoutes(RouteTable routeTable) {
         for (Route route : routes) {
-            String path = join(route).replaceAll("\\{(.*?)\\}", ":$1");
-            log.debug("mounting route path: {} {}", route.getVerb(), path);
+            String[] segments = route.getSegments();
+            if (segments == null) {
+                // generated by an older processor, split it here once
+                segments = StringUtil.splitPath(route.getBaseUrl(), route.getUrl());
+            }
+            log.debug("mounting route path: {} /{}", route.getVerb(), String.join("/", segments));
+            if (route.getBlocking() == null) {
+                route.setBlocking(options.blockingByDefault());
+            }
             route.installAops(hub);
-            router.addRoute(HttpMethod.valueOf(route.getVerb()), path, route);
+            routeTable.add(HttpMethod.valueOf(route.getVerb()), segments, route);
+        }
+    }
+
+
+    /**
+     * temp files are deleted when their request is done. deleteOnExit would also keep every
+     * path ever uploaded in memory until the jvm stops.
+     */
+    private void configureUploads() {
+        DiskFileUpload.deleteOnExitTemporaryFile = false;
+        DiskAttribute.deleteOnExitTemporaryFile = false;
+        String directory = options.uploadDirectory();
+        if (directory != null) {
+            DiskFileUpload.baseDirectory = directory;
+            DiskAttribute.baseDirectory = directory;
         }
-        router.notFound(Route.NotFound);
     }
 
-    private String join(Route route) {
-        String base = route.getBaseUrl();
-        if (base.endsWith("/")) {
-            base = base.substring(0, base.length() - 1);
+    private SslContext sslContext() throws Exception {
+        SslContextBuilder builder;
+        if (options.sslCertificate() == null) {
+            log.warn("no certificate configured, https uses a self signed one");
+            SelfSignedCertificate ssc = new SelfSignedCertificate();
+            builder = SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey());
+        } else {
+            builder = SslContextBuilder.forServer(options.sslCertificate(), options.sslPrivateKey(),
+                    options.sslKeyPassword());
         }
-        String url = route.getUrl();
-        if (url.startsWith("/")) {
-            url = url.substring(1);
+        SslProvider provider = sslProvider();
+        builder.sslProvider(provider)
+                .sessionCacheSize(options.sslSessionCacheSize())
+                .sessionTimeout(options.sslSessionTimeout());
+        if (options.http2() && !alpnAvailable(provider)) {
+            log.warn("no alpn support with the {} provider, https stays on http/1.1", provider);
+        } else if (options.http2()) {
+            builder.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                    .applicationProtocolConfig(new ApplicationProtocolConfig(
+                            ApplicationProtocolConfig.Protocol.ALPN,
+                            ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                            ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                            ApplicationProtocolNames.HTTP_2,
+                            ApplicationProtocolNames.HTTP_1_1));
         }
-        return base + "/" + url;
+        SslContext context = builder.build();
+
+        byte[] ticketKeys = options.sslTicketKeys();
+        if (ticketKeys != null) {
+            if (context.sessionContext() instanceof OpenSslSessionContext) {
+                ((OpenSslSessionContext) context.sessionContext()).setTicketKeys(ticketKeys(ticketKeys));
+            } else {
+                log.warn("session ticket keys need the openssl provider, they are ignored");
+            }
+        }
+        log.info("tls with the {} provider", provider);
+        return context;
     }
 
+    /**
+     * the keys in {@link ServerOptions#sslTicketKeys()}, 48 bytes each, the first one encrypts.
+     */
+    private static OpenSslSessionTicketKey[] ticketKeys(byte[] bytes) {
+        int size = OpenSslSessionTicketKey.TICKET_KEY_SIZE;
+        if (bytes.length == 0 || bytes.length % (size * 3) != 0) {
+            throw new IllegalArgumentException("session ticket keys are " + size * 3 + " bytes each, got " + bytes.length);
+        }
+        OpenSslSessionTicketKey[] keys = new OpenSslSessionTicketKey[bytes.length / (size * 3)];
+        for (int i = 0; i < keys.length; i++) {
+            int offset = i * size * 3;
+            keys[i] = new OpenSslSessionTicketKey(
+                    Arrays.copyOfRange(bytes, offset, offset + size),
+                    Arrays.copyOfRange(bytes, offset + size, offset + size * 2),
+                    Arrays.copyOfRange(bytes, offset + size * 2, offset + size * 3));
+        }
+        return keys;
+    }
 
-    private Channel ch;
-    private NioEventLoopGroup bossGroup;
-    private NioEventLoopGroup workerGroup;
+    private SslProvider sslProvider() {
+        SslProvider provider = options.sslProvider();
+        if (provider == null) {
+            return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+        }
+        if (provider == SslProvider.OPENSSL && !OpenSsl.isAvailable()) {
+            throw new IllegalStateException("openssl is not available", OpenSsl.unavailabilityCause());
+        }
+        return provider;
+    }
+
+    /**
+     * the jdk provider only does alpn with alpn-boot on the boot classpath.
+     */
+    private static boolean alpnAvailable(SslProvider provider) {
+        if (provider == SslProvider.OPENSSL) {
+            return OpenSsl.isAlpnSupported();
+        }
+        try {
+            Class.forName("org.eclipse.jetty.alpn.ALPN", false, null);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private boolean useEpoll() {
+        switch (options.transport()) {
+            case EPOLL:
+                if (!Epoll.isAvailable()) {
+                    throw new IllegalStateException("epoll transport is not available", Epoll.unavailabilityCause());
+                }
+                return true;
+            case AUTO:
+                return Epoll.isAvailable();
+            case NIO:
+            default:
+                return false;
+        }
+    }
+
+
+    private final List<Channel> channels = new ArrayList<>();
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private BlockingExecutor blockingExecutor;
+    private final ConnectionStats connectionStats = new ConnectionStats();
+    private StaticFiles staticFiles;
+
+    /**
+     * queue depth, rejections and throughput of the pool running blocking routes.
+     */
+    public BlockingExecutor getBlockingExecutor() {
+        return blockingExecutor;
+    }
+
+    /**
+     * open connections and how often they are reused or pipelined.
+     */
+    public ConnectionStats getConnectionStats() {
+        return connectionStats;
+    }
+
+    /**
+     * hits, misses and size of the cache of files sent as response bodies.
+     */
+    public FileCache getFileCache() {
+        return staticFiles.cache();
+    }
 
 
     public void waitForShutdown() throws InterruptedException {
         try {
-            ch.closeFuture().sync();
+            for (Channel ch : channels) {
+                ch.closeFuture().sync();
+            }
         } finally {
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            blockingExecutor.shutdown();
+            staticFiles.close();
         }
     }
 
     public void waitForShutdown1() throws InterruptedException {
-        try {
-            ch.closeFuture().sync();
-        } finally {
-            bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
-        }
+        waitForShutdown();
     }
 }
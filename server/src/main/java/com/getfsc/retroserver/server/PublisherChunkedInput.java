@@ -0,0 +1,174 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午8:50
+ * <p>
+ * Subscribes to a reactive-streams Publisher and hands what it emits to
+ * {@link ChunkedWriteHandler}, or {@link Http2ResponseWriter} on http/2. Items are only requested a
+ * batch at a time, once the previous batch has been taken by the writer, which in turn only takes
+ * chunks while the channel (or the stream) is writable. Emissions may come from any thread, the
+ * writer is resumed on the event loop.
+ */
+class PublisherChunkedInput implements ChunkedInput<ByteBuf>, Subscriber<Object> {
+
+    private static final int BATCH = 16;
+
+    private final ChannelHandlerContext ctx;
+    private final StreamFormat format;
+    private final int chunkSize;
+    private final Queue<ByteBuf> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private volatile Subscription subscription;
+    private volatile boolean done;
+    private volatile Throwable error;
+    private boolean first = true;
+    private long progress;
+
+    PublisherChunkedInput(ChannelHandlerContext ctx, StreamFormat format, int chunkSize) {
+        this.ctx = ctx;
+        this.format = format;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        subscription = s;
+        ByteBuf head = ctx.alloc().buffer();
+        format.open(head);
+        offer(head);
+        pending.addAndGet(BATCH);
+        s.request(BATCH);
+    }
+
+    @Override
+    public void onNext(Object item) {
+        pending.decrementAndGet();
+        ByteBuf buf = ctx.alloc().buffer();
+        try {
+            format.item(item, first, buf);
+            first = false;
+        } catch (Throwable e) {
+            buf.release();
+            subscription.cancel();
+            onError(e);
+            return;
+        }
+        offer(buf);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        error = t;
+        done = true;
+        resume();
+    }
+
+    @Override
+    public void onComplete() {
+        ByteBuf tail = ctx.alloc().buffer();
+        format.close(tail);
+        offer(tail);
+        done = true;
+        resume();
+    }
+
+    private void offer(ByteBuf buf) {
+        if (buf.isReadable()) {
+            ready.add(buf);
+            resume();
+        } else {
+            buf.release();
+        }
+    }
+
+    private void resume() {
+        HttpStreamInput.resumeTransfer(ctx);
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return done && error == null && ready.isEmpty();
+    }
+
+    @Override
+    public void close() {
+        Subscription s = subscription;
+        if (!done && s != null) {
+            s.cancel();
+        }
+        ByteBuf buf;
+        while ((buf = ready.poll()) != null) {
+            buf.release();
+        }
+    }
+
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        ByteBuf buf = ready.poll();
+        if (buf == null) {
+            if (error != null) {
+                throw error instanceof Exception ? (Exception) error : new RuntimeException(error);
+            }
+            request();
+            return null;
+        }
+        // coalesce small items into one chunk
+        CompositeByteBuf chunk = null;
+        ByteBuf next;
+        while (buf.readableBytes() < chunkSize && (next = ready.peek()) != null) {
+            if (chunk == null) {
+                chunk = allocator.compositeBuffer();
+                chunk.addComponent(buf);
+                chunk.writerIndex(buf.readableBytes());
+                buf = chunk;
+            }
+            ready.poll();
+            chunk.addComponent(next);
+            chunk.writerIndex(chunk.writerIndex() + next.readableBytes());
+        }
+        request();
+        progress += buf.readableBytes();
+        return buf;
+    }
+
+    /**
+     * asks for the next batch once the previous one has been delivered and taken.
+     */
+    private void request() {
+        Subscription s = subscription;
+        if (s != null && !done && ready.isEmpty() && pending.get() == 0) {
+            pending.addAndGet(BATCH);
+            s.request(BATCH);
+        }
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+}
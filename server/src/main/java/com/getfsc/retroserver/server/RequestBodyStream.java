@@ -0,0 +1,155 @@
+package com.getfsc.retroserver.server;
+
+import com.getfsc.retroserver.http.BodyStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午11:25
+ * <p>
+ * {@link BodyStream} fed by {@link HttpServerHandler}. Chunks that can't be delivered, no handler
+ * yet or paused, are kept and reading from the connection stops until they can; so at most what
+ * was already read is held. The state is only touched on the event loop, calls from a controller
+ * on another thread hop over.
+ */
+class RequestBodyStream implements BodyStream {
+
+    private final ChannelHandlerContext ctx;
+    private final Runnable resumeReading;
+    private final Queue<ByteBuf> pending = new ArrayDeque<>();
+    private Handler handler;
+    private boolean paused;
+    private boolean ended;
+    private boolean finished;
+    private Throwable failure;
+    private volatile long received;
+
+    /**
+     * @param resumeReading turns reading back on, unless something else still holds it off
+     */
+    RequestBodyStream(ChannelHandlerContext ctx, Runnable resumeReading) {
+        this.ctx = ctx;
+        this.resumeReading = resumeReading;
+    }
+
+    @Override
+    public void handler(Handler handler) {
+        onLoop(() -> {
+            this.handler = handler;
+            if (failure != null) {
+                handler.error(failure);
+            } else {
+                drain();
+            }
+        });
+    }
+
+    @Override
+    public void pause() {
+        onLoop(() -> {
+            paused = true;
+            ctx.channel().config().setAutoRead(false);
+        });
+    }
+
+    @Override
+    public void resume() {
+        onLoop(() -> {
+            paused = false;
+            drain();
+        });
+    }
+
+    @Override
+    public long received() {
+        return received;
+    }
+
+    /**
+     * whether reading has to stay off for this stream.
+     */
+    boolean holdsReading() {
+        return !finished && (paused || handler == null && !pending.isEmpty());
+    }
+
+    void offer(ByteBuf content, boolean last) {
+        received += content.readableBytes();
+        if (finished) {
+            return;
+        }
+        if (content.isReadable()) {
+            pending.add(content.retain());
+        }
+        ended = last;
+        drain();
+    }
+
+    /**
+     * the connection closed before the end of the body.
+     */
+    void fail(Throwable cause) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        release();
+        if (handler != null) {
+            handler.error(cause);
+        } else {
+            failure = cause;
+        }
+    }
+
+    private void drain() {
+        if (finished) {
+            return;
+        }
+        if (handler == null || paused) {
+            if (!pending.isEmpty()) {
+                ctx.channel().config().setAutoRead(false);
+            }
+            return;
+        }
+        ByteBuf buf;
+        while (!paused && (buf = pending.poll()) != null) {
+            try {
+                handler.chunk(buf.nioBuffer());
+            } catch (Throwable e) {
+                fail(e);
+                return;
+            } finally {
+                buf.release();
+            }
+        }
+        if (paused) {
+            ctx.channel().config().setAutoRead(false);
+            return;
+        }
+        if (ended) {
+            finished = true;
+            handler.end();
+        }
+        resumeReading.run();
+    }
+
+    private void release() {
+        ByteBuf buf;
+        while ((buf = pending.poll()) != null) {
+            buf.release();
+        }
+    }
+
+    private void onLoop(Runnable task) {
+        if (ctx.executor().inEventLoop()) {
+            task.run();
+        } else {
+            ctx.executor().execute(task);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AttributeKey;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午6:05
+ * <p>
+ * gzip/deflate by Accept-Encoding, only for responses of a compressible type and at least
+ * {@link ServerOptions#compressionMinSize()} long. A response that already carries a Content-Encoding
+ * is left alone, and so is one marked by {@link #leaveAlone}: {@link StaticFiles#send} marks file
+ * regions, which can't go through the encoder, and ranges. The mark is a channel attribute, the
+ * response goes out with the headers it has.
+ * <p>
+ * On http/2 it is not in the pipeline, {@link Http2ResponseWriter} applies these rules to each stream
+ * through {@link #encoder} and {@link #encode}.
+ */
+class ResponseCompressor extends HttpContentCompressor {
+
+    private static final AttributeKey<HttpResponse> LEFT_ALONE =
+            AttributeKey.valueOf(ResponseCompressor.class, "LEFT_ALONE");
+
+    private final int minSize;
+    private final Set<String> types;
+    // the head being encoded is marked, beginEncode has no channel to look at
+    private boolean leftAlone;
+
+    ResponseCompressor(int level, int minSize, Set<String> types) {
+        super(level);
+        this.minSize = minSize;
+        this.types = types;
+    }
+
+    /**
+     * keeps the response about to be written on the channel as it is. marks only where something
+     * takes the mark off again: this compressor, or the http/2 writer.
+     */
+    static void leaveAlone(ChannelPipeline p, HttpResponse response) {
+        if (p.get(ResponseCompressor.class) != null || p.get(Http2ResponseWriter.class) != null) {
+            p.channel().attr(LEFT_ALONE).set(response);
+        }
+    }
+
+    /**
+     * takes the mark off, if any.
+     *
+     * @return whether the response was marked by {@link #leaveAlone}
+     */
+    static boolean leftAlone(Channel channel, HttpResponse response) {
+        return channel.attr(LEFT_ALONE).getAndSet(null) == response;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+        if (msg instanceof HttpResponse) {
+            leftAlone = leftAlone(ctx.channel(), (HttpResponse) msg);
+        }
+        super.encode(ctx, msg, out);
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+        HttpHeaders headers = response.headers();
+        if (leftAlone || headers.contains(HttpHeaderNames.CONTENT_ENCODING)) {
+            return null;
+        }
+        // unknown length means a stream, worth compressing whatever its size
+        if (headers.getInt(HttpHeaderNames.CONTENT_LENGTH, Integer.MAX_VALUE) < minSize) {
+            return null;
+        }
+        if (!compressible(headers.get(HttpHeaderNames.CONTENT_TYPE))) {
+            return null;
+        }
+        Result result = super.beginEncode(response, acceptEncoding);
+        if (result != null) {
+            headers.add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+            // the encoded bytes differ from the ones a strong etag stands for
+            String etag = headers.get(HttpHeaderNames.ETAG);
+            if (etag != null && !etag.startsWith("W/")) {
+                headers.set(HttpHeaderNames.ETAG, "W/" + etag);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * starts encoding a response outside the pipeline, by the same rules.
+     *
+     * @return the encoder of the response's body, null to send it as it is
+     */
+    EmbeddedChannel encoder(HttpResponse response, String acceptEncoding) throws Exception {
+        int code = response.status().code();
+        if (code < 200 || code == 204 || code == 304) {
+            return null;
+        }
+        Result result = beginEncode(response, acceptEncoding);
+        if (result == null) {
+            return null;
+        }
+        response.headers().set(HttpHeaderNames.CONTENT_ENCODING, result.targetContentEncoding());
+        response.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+        return result.contentEncoder();
+    }
+
+    /**
+     * the content with its body encoded, the body is taken over.
+     */
+    static HttpContent encode(ByteBufAllocator alloc, EmbeddedChannel encoder, HttpContent content) {
+        boolean last = content instanceof LastHttpContent;
+        ByteBuf encoded = encode(alloc, encoder, content.content(), last);
+        if (content instanceof FullHttpResponse) {
+            return ((FullHttpResponse) content).replace(encoded);
+        }
+        if (last) {
+            LastHttpContent trailed = new DefaultLastHttpContent(encoded);
+            trailed.trailingHeaders().set(((LastHttpContent) content).trailingHeaders());
+            return trailed;
+        }
+        return new DefaultHttpContent(encoded);
+    }
+
+    /**
+     * runs a piece of a body through the encoder, the last one also flushes out what it holds back.
+     * the piece is released.
+     */
+    static ByteBuf encode(ByteBufAllocator alloc, EmbeddedChannel encoder, ByteBuf in, boolean last) {
+        if (in.isReadable()) {
+            encoder.writeOutbound(in);
+        } else {
+            in.release();
+        }
+        if (last) {
+            encoder.finish();
+        }
+        CompositeByteBuf out = alloc.compositeBuffer();
+        ByteBuf buf;
+        while ((buf = encoder.readOutbound()) != null) {
+            if (buf.isReadable()) {
+                out.addComponent(buf);
+                out.writerIndex(out.writerIndex() + buf.readableBytes());
+            } else {
+                buf.release();
+            }
+        }
+        return out;
+    }
+
+    private boolean compressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int end = contentType.indexOf(';');
+        String type = (end < 0 ? contentType : contentType.substring(0, end)).trim().toLowerCase(Locale.ROOT);
+        if (types.contains(type)) {
+            return true;
+        }
+        int slash = type.indexOf('/');
+        return slash > 0 && types.contains(type.substring(0, slash + 1));
+    }
+}
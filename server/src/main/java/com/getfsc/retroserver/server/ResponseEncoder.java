@@ -0,0 +1,83 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.util.CharsetUtil;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Locale;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午7:45
+ * <p>
+ * How a response body is written out: json, text in a charset, or raw bytes/file. Resolved once
+ * per route from its content type when the route is added; only a content type a controller sets
+ * at runtime is looked at again.
+ */
+final class ResponseEncoder {
+
+    enum Kind {
+        JSON, TEXT, FILE
+    }
+
+    static final ResponseEncoder JSON = new ResponseEncoder(Kind.JSON, null);
+    static final ResponseEncoder TEXT = new ResponseEncoder(Kind.TEXT, CharsetUtil.UTF_8);
+    static final ResponseEncoder FILE = new ResponseEncoder(Kind.FILE, null);
+
+    final Kind kind;
+    final Charset charset;
+
+    private ResponseEncoder(Kind kind, Charset charset) {
+        this.kind = kind;
+        this.charset = charset;
+    }
+
+    /**
+     * application/* and anything unparseable is json, text/* is text (utf-8 unless a charset is given),
+     * every other type is sent as bytes.
+     */
+    static ResponseEncoder of(String contentType) {
+        if (contentType == null) {
+            return JSON;
+        }
+        int slash = contentType.indexOf('/');
+        if (slash <= 0) {
+            return JSON;
+        }
+        switch (contentType.substring(0, slash).trim().toLowerCase(Locale.ROOT)) {
+            case "application":
+            case "json":
+                return JSON;
+            case "text":
+                Charset charset = charset(contentType);
+                return charset == null || charset.equals(CharsetUtil.UTF_8) ? TEXT : new ResponseEncoder(Kind.TEXT, charset);
+            default:
+                return FILE;
+        }
+    }
+
+    private static Charset charset(String contentType) {
+        int from = contentType.indexOf(';');
+        while (from >= 0) {
+            int end = contentType.indexOf(';', from + 1);
+            String param = (end < 0 ? contentType.substring(from + 1) : contentType.substring(from + 1, end)).trim();
+            int eq = param.indexOf('=');
+            if (eq > 0 && param.substring(0, eq).trim().equalsIgnoreCase("charset")) {
+                String name = param.substring(eq + 1).trim();
+                if (name.length() > 1 && name.charAt(0) == '"' && name.charAt(name.length() - 1) == '"') {
+                    name = name.substring(1, name.length() - 1);
+                }
+                try {
+                    return Charset.forName(name);
+                } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                    return null;
+                }
+            }
+            from = end;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,57 @@
+package com.getfsc.retroserver.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午4:40
+ * <p>
+ * Keeps pipelined responses of one connection in request order. Every request takes a
+ * sequence number when it arrives; a response that completes before the ones in front of it
+ * is held until they are written. Only used from the channel's event loop.
+ */
+final class ResponseSequencer {
+
+    private int next;
+    private int written;
+    private Map<Integer, Runnable> held;
+
+    int next() {
+        return next++;
+    }
+
+    /**
+     * requests read but not answered yet, including the one just taken.
+     */
+    int inFlight() {
+        return next - written;
+    }
+
+    void complete(int seq, Runnable write) {
+        if (seq != written) {
+            if (held == null) {
+                held = new HashMap<>();
+            }
+            held.put(seq, write);
+            return;
+        }
+        run(write);
+        if (held != null) {
+            Runnable r;
+            while ((r = held.remove(written)) != null) {
+                run(r);
+            }
+        }
+    }
+
+    private void run(Runnable write) {
+        try {
+            write.run();
+        } finally {
+            written++;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.getfsc.retroserver.server;
+
+import com.getfsc.retroserver.Route;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.multipart.HttpDataFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午2:36
+ * <p>
+ * Result of {@link RouteTable#route}. Path params are substrings of the uri taken on demand,
+ * the query string is only decoded when a query param is asked for.
+ */
+public class RouteMatch {
+
+    private final RouteTable.Node node;
+    private final int[] bounds;
+    private final String uri;
+    private final int pathEnd;
+    private Map<String, List<String>> queryParams;
+
+    RouteMatch(RouteTable.Node node, int[] bounds, String uri, int pathEnd) {
+        this.node = node;
+        this.bounds = bounds;
+        this.uri = uri;
+        this.pathEnd = pathEnd;
+    }
+
+    public Route target() {
+        return node.route;
+    }
+
+    /**
+     * static headers of the route, or null.
+     */
+    public HttpHeaders headers() {
+        return node.headers;
+    }
+
+    /**
+     * the encoder for a response that still has the route's content type.
+     */
+    ResponseEncoder encoder(String contentType) {
+        if (contentType == null || contentType.equals(node.contentType)) {
+            return node.encoder;
+        }
+        return ResponseEncoder.of(contentType);
+    }
+
+    /**
+     * data factory for the route's own multipart memory threshold, or null.
+     */
+    HttpDataFactory dataFactory() {
+        return node.dataFactory;
+    }
+
+    public String pathParam(String name) {
+        String[] paramNames = node.paramNames;
+        if (paramNames != null) {
+            for (int i = 0; i < paramNames.length; i++) {
+                if (paramNames[i].equals(name)) {
+                    return QueryStringDecoder.decodeComponent(uri.substring(bounds[i * 2], bounds[i * 2 + 1]));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * path param first, falls back to the first query param of the same name.
+     */
+    public String param(String name) {
+        String value = pathParam(name);
+        return value == null ? queryParam(name) : value;
+    }
+
+    public String queryParam(String name) {
+        List<String> values = queryParams().get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    public Map<String, List<String>> queryParams() {
+        if (queryParams == null) {
+            queryParams = pathEnd < uri.length() && uri.charAt(pathEnd) == '?'
+                    ? new QueryStringDecoder(uri).parameters()
+                    : Collections.emptyMap();
+        }
+        return queryParams;
+    }
+}
@@ -0,0 +1,211 @@
+package com.getfsc.retroserver.server;
+
+import com.getfsc.retroserver.Route;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
+import io.netty.handler.codec.http.multipart.HttpDataFactory;
+import io.netty.util.AsciiString;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午2:10
+ * <p>
+ * Per-verb dispatch table built once from the path segments the annotation processor
+ * splits at compile time. Static paths are looked up in a hash map, everything else walks
+ * a segment trie. Matching compares regions of the request uri in place, so there is no
+ * regex, no splitting and no param map per request; params are kept as offsets into the uri.
+ */
+public class RouteTable {
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(RouteTable.class);
+    private static final int[] NO_BOUNDS = new int[0];
+    private static final Node NOT_FOUND = new Node(null);
+
+    static {
+        NOT_FOUND.route = Route.NotFound;
+        NOT_FOUND.encoder = ResponseEncoder.JSON;
+    }
+
+    private final Map<HttpMethod, Map<String, Node>> statics = new HashMap<>();
+    private final Map<HttpMethod, Node> roots = new HashMap<>();
+    private int maxParams;
+
+    public void add(HttpMethod method, String[] segments, Route route) {
+        Node node = roots.computeIfAbsent(method, m -> new Node(null));
+        List<String> params = new ArrayList<>();
+        for (String segment : segments) {
+            if (isParam(segment)) {
+                params.add(segment.substring(1, segment.length() - 1));
+                if (node.param == null) {
+                    node.param = new Node(null);
+                }
+                node = node.param;
+            } else {
+                node = node.child(segment);
+            }
+        }
+        if (node.route != null) {
+            log.warn("route {} {} is replaced by {}", method, node.route, route);
+        }
+        node.route = route;
+        node.headers = encodeHeaders(route);
+        node.contentType = node.headers == null ? null : node.headers.get(HttpHeaderNames.CONTENT_TYPE);
+        node.encoder = ResponseEncoder.of(node.contentType);
+        node.paramNames = params.toArray(new String[params.size()]);
+        if (route.getMultipartMemoryThreshold() >= 0) {
+            node.dataFactory = new DefaultHttpDataFactory(route.getMultipartMemoryThreshold());
+        }
+        maxParams = Math.max(maxParams, params.size());
+
+        if (params.isEmpty()) {
+            statics.computeIfAbsent(method, m -> new HashMap<>())
+                    .put(segments.length == 0 ? "/" : "/" + String.join("/", segments), node);
+        }
+    }
+
+    public RouteMatch route(HttpMethod method, String uri) {
+        int end = pathEnd(uri);
+
+        Map<String, Node> exact = statics.get(method);
+        if (exact != null) {
+            Node node = exact.get(end == uri.length() ? uri : uri.substring(0, end));
+            if (node != null) {
+                return new RouteMatch(node, NO_BOUNDS, uri, end);
+            }
+        }
+
+        Node root = roots.get(method);
+        if (root != null) {
+            int[] bounds = maxParams == 0 ? NO_BOUNDS : new int[maxParams * 2];
+            Node node = match(root, uri, 0, end, bounds, 0);
+            if (node != null) {
+                return new RouteMatch(node, bounds, uri, end);
+            }
+        }
+        return new RouteMatch(NOT_FOUND, NO_BOUNDS, uri, end);
+    }
+
+    /**
+     * the "name: value" lines of @ContentType/@ServerHeaders, parsed once into headers that
+     * every response of the route starts from.
+     */
+    private static HttpHeaders encodeHeaders(Route route) {
+        if (route.getHeaders().isEmpty()) {
+            return null;
+        }
+        HttpHeaders headers = new DefaultHttpHeaders();
+        for (String header : route.getHeaders()) {
+            int colon = header.indexOf(':');
+            if (colon <= 0) {
+                log.warn("ignoring malformed header '{}' of route {}", header, route);
+                continue;
+            }
+            headers.add(AsciiString.of(header.substring(0, colon).trim().toLowerCase(Locale.ROOT)),
+                    AsciiString.of(header.substring(colon + 1).trim()));
+        }
+        return headers.isEmpty() ? null : headers;
+    }
+
+    private static Node match(Node node, String uri, int pos, int end, int[] bounds, int param) {
+        while (pos < end && uri.charAt(pos) == '/') {
+            pos++;
+        }
+        if (pos == end) {
+            return node.route == null ? null : node;
+        }
+        int segmentEnd = uri.indexOf('/', pos);
+        if (segmentEnd < 0 || segmentEnd > end) {
+            segmentEnd = end;
+        }
+        int length = segmentEnd - pos;
+        int hash = hash(uri, pos, segmentEnd);
+
+        // static segments win over params, fall back to the param branch if they lead nowhere
+        for (Node child : node.children) {
+            if (child.hash == hash && child.segment.length() == length
+                    && uri.regionMatches(pos, child.segment, 0, length)) {
+                Node found = match(child, uri, segmentEnd, end, bounds, param);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        if (node.param != null) {
+            bounds[param * 2] = pos;
+            bounds[param * 2 + 1] = segmentEnd;
+            return match(node.param, uri, segmentEnd, end, bounds, param + 1);
+        }
+        return null;
+    }
+
+    private static int pathEnd(String uri) {
+        for (int i = 0; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return uri.length();
+    }
+
+    private static boolean isParam(String segment) {
+        return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+    }
+
+    /**
+     * same as {@link String#hashCode()} of the region, without creating the substring.
+     */
+    private static int hash(String s, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+    static class Node {
+        private static final Node[] NONE = new Node[0];
+
+        final String segment;
+        final int hash;
+        Node[] children = NONE;
+        Node param;
+        Route route;
+        HttpHeaders headers;
+        String contentType;
+        ResponseEncoder encoder;
+        String[] paramNames;
+        HttpDataFactory dataFactory;
+
+        Node(String segment) {
+            this.segment = segment;
+            this.hash = segment == null ? 0 : segment.hashCode();
+        }
+
+        Node child(String segment) {
+            for (Node child : children) {
+                if (child.segment.equals(segment)) {
+                    return child;
+                }
+            }
+            Node child = new Node(segment);
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = child;
+            return child;
+        }
+    }
+}
@@ -1,5 +1,12 @@
 package com.getfsc.retroserver.server;
 
+import io.netty.handler.ssl.SslProvider;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * Created by IntelliJ IDEA.
  * User: draco
@@ -13,4 +20,234 @@ public interface ServerOptions {
     default boolean ssl(){
         return false;
     }
+
+    /**
+     * pem certificate chain for {@link #ssl()}, a self signed certificate is made up when null.
+     */
+    default File sslCertificate() {
+        return null;
+    }
+
+    /**
+     * pkcs#8 pem private key of {@link #sslCertificate()}.
+     */
+    default File sslPrivateKey() {
+        return null;
+    }
+
+    default String sslKeyPassword() {
+        return null;
+    }
+
+    /**
+     * null picks openssl (netty-tcnative on the classpath) when it is available, the jdk otherwise.
+     */
+    default SslProvider sslProvider() {
+        return null;
+    }
+
+    /**
+     * sessions kept for resumption by session id, 0 is the provider's default.
+     */
+    default long sslSessionCacheSize() {
+        return 20480;
+    }
+
+    /**
+     * seconds a cached session or ticket can be resumed, 0 is the provider's default.
+     */
+    default long sslSessionTimeout() {
+        return 300;
+    }
+
+    /**
+     * 48 bytes (name, hmac and aes key of 16 each) encrypting session tickets, the same on every
+     * node lets a client resume on any of them. several keys one after the other rotate them: the
+     * first encrypts, all of them decrypt. null leaves openssl a random key per server.
+     * only the openssl provider does tickets.
+     */
+    default byte[] sslTicketKeys() {
+        return null;
+    }
+
+    default Transport transport() {
+        return Transport.AUTO;
+    }
+
+    /**
+     * threads accepting connections, raised to {@link #acceptors()} when that is bigger.
+     */
+    default int bossThreads() {
+        return 1;
+    }
+
+    /**
+     * threads doing the channel io, 0 means netty's default of twice the cores.
+     */
+    default int workerThreads() {
+        return 0;
+    }
+
+    /**
+     * listening sockets bound to the port with SO_REUSEPORT so the kernel balances accepts
+     * across them. only used with epoll, nio always binds one.
+     */
+    default int acceptors() {
+        return 1;
+    }
+
+    /**
+     * whether routes without {@link com.getfsc.retroserver.annotation.Blocking} run on the blocking executor.
+     */
+    default boolean blockingByDefault() {
+        return false;
+    }
+
+    default int blockingThreads() {
+        return 64;
+    }
+
+    /**
+     * calls waiting for a blocking thread, requests beyond it are answered with 503.
+     */
+    default int blockingQueueSize() {
+        return 1024;
+    }
+
+    /**
+     * requests read ahead on one connection before reading pauses, responses still go out in order.
+     */
+    default int maxPipelinedRequests() {
+        return 16;
+    }
+
+    /**
+     * largest buffered request body, longer ones are answered with 413. routes reading the body
+     * through a {@link com.getfsc.retroserver.http.BodyStream} are not limited.
+     */
+    default long maxBodySize() {
+        return 10 * 1024 * 1024;
+    }
+
+    /**
+     * form fields and multipart parts up to this size are kept in memory, bigger ones go to a temp file.
+     */
+    default long multipartMemoryThreshold() {
+        return 16 * 1024;
+    }
+
+    /**
+     * largest single form field or multipart part.
+     */
+    default long maxPartSize() {
+        return maxBodySize();
+    }
+
+    default int maxParts() {
+        return 128;
+    }
+
+    /**
+     * where multipart temp files go, null is java.io.tmpdir. on the file system uploads are moved
+     * to, {@link com.getfsc.retroserver.http.UploadedPart#moveTo} is a rename.
+     */
+    default String uploadDirectory() {
+        return null;
+    }
+
+    /**
+     * h2 over alpn when {@link #ssl()} is on, h2c by upgrade or prior knowledge otherwise.
+     */
+    default boolean http2() {
+        return false;
+    }
+
+    /**
+     * largest request body of one http/2 stream, the stream is reset beyond it.
+     */
+    default int http2MaxContentLength() {
+        return 16 * 1024 * 1024;
+    }
+
+    /**
+     * gzip/deflate responses for clients that accept it.
+     */
+    default boolean compression() {
+        return false;
+    }
+
+    default int compressionLevel() {
+        return 6;
+    }
+
+    /**
+     * responses shorter than this are sent as they are, the gzip framing would eat the gain.
+     */
+    default int compressionMinSize() {
+        return 1024;
+    }
+
+    /**
+     * content types worth compressing, an entry ending with '/' matches the whole family.
+     */
+    default Set<String> compressibleTypes() {
+        return new HashSet<>(Arrays.asList("text/", "application/json", "application/javascript",
+                "application/xml", "image/svg+xml"));
+    }
+
+    /**
+     * serve a sibling {@code .br} or {@code .gz} of a File body when the client accepts that encoding.
+     */
+    default boolean precompressedFiles() {
+        return true;
+    }
+
+    /**
+     * bytes per chunk of a streamed (InputStream, Iterator, Stream, Publisher) response body.
+     */
+    default int streamChunkSize() {
+        return 8192;
+    }
+
+    /**
+     * bytes of small files the file cache keeps in memory.
+     */
+    default long fileCacheSize() {
+        return 32 * 1024 * 1024;
+    }
+
+    /**
+     * files up to this size are cached whole, bigger ones only keep their channel open.
+     */
+    default int fileCacheMaxFileSize() {
+        return 64 * 1024;
+    }
+
+    /**
+     * files the cache knows about, cached, open or missing.
+     */
+    default int fileCacheEntries() {
+        return 1024;
+    }
+
+    /**
+     * milliseconds a cached file is served without checking it on disk again.
+     */
+    default long fileCacheValidity() {
+        return 1000;
+    }
+
+    /**
+     * bytes read from disk at a time for a file sent over tls or http/2.
+     */
+    default int fileChunkSize() {
+        return 128 * 1024;
+    }
+
+    /**
+     * threads reading those chunks, off the event loops.
+     */
+    default int fileReadThreads() {
+        return 4;
+    }
 }
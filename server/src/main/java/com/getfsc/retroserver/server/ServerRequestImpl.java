@@ -1,46 +1,50 @@
 package com.getfsc.retroserver.server;
 
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.getfsc.retroserver.ObjectConvert;
 import com.getfsc.retroserver.Route;
 import com.getfsc.retroserver.annotation.ContentType;
+import com.getfsc.retroserver.http.BodyStream;
 import com.getfsc.retroserver.http.ServerRequest;
 import com.getfsc.retroserver.http.ServerResponse;
 import com.getfsc.retroserver.http.Session;
+import com.getfsc.retroserver.http.UploadedPart;
 import com.getfsc.retroserver.http.Value;
 import com.getfsc.retroserver.session.SessionProvider;
 import com.getfsc.retroserver.util.H;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
-import io.netty.handler.codec.http.cookie.ServerCookieEncoder;
 import io.netty.handler.codec.http.multipart.*;
-import io.netty.handler.codec.http.router.RouteResult;
-import io.netty.handler.ssl.SslHandler;
-import io.netty.handler.stream.ChunkedFile;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.AsciiString;
 import io.netty.util.AttributeMap;
 import io.netty.util.CharsetUtil;
 import io.netty.util.DefaultAttributeMap;
+import io.netty.util.concurrent.Future;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 import okhttp3.*;
+import org.reactivestreams.Publisher;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import static com.google.common.net.HttpHeaders.CONNECTION;
 import static io.netty.handler.codec.http.HttpHeaderNames.*;
 import static io.netty.handler.codec.http.HttpResponseStatus.*;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
@@ -53,46 +57,46 @@ import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
  */
 public class ServerRequestImpl implements ServerRequest {
     private static final InternalLogger log = InternalLoggerFactory.getInstance(NettyServer.class);
-    private static final int HTTP_CACHE_SECONDS = 315360000;
+    private static final AsciiString JSON_TYPE = new AsciiString(ContentType.JSON);
+    private static final AsciiString TEXT_TYPE = new AsciiString("text/plain; charset=UTF-8");
+    private static final Set<Charset> UNICODE = new HashSet<>(Arrays.asList(CharsetUtil.UTF_8,
+            CharsetUtil.UTF_16, CharsetUtil.UTF_16BE, CharsetUtil.UTF_16LE,
+            Charset.forName("UTF-32"), Charset.forName("UTF-32BE"), Charset.forName("UTF-32LE")));
 
     private final HttpRequest request;
-    private final HttpPostRequestDecoder decoder;
+    private final FormBody form;
     private final ServerResponseImpl response;
     private CompositeByteBuf bodyBuf;
-    private final RouteResult<Route> routeResult;
-
-    public ServerRequestImpl(HttpRequest request, HttpPostRequestDecoder decoder, CompositeByteBuf bodyBuf, RouteResult<Route> routeResult, DefaultHttpResponse rawResponse) {
+    private final BodyStream bodyStream;
+    private final RouteMatch routeResult;
+    private final BlockingExecutor blockingExecutor;
+    private final StaticFiles staticFiles;
+    private final ServerOptions options;
+    private boolean bodyWritten;
+    // the File body looked up ahead of the response, its entry goes to StaticFiles#send
+    private File lookedUp;
+    private Future<FileCache.Entry> lookup;
+
+    public ServerRequestImpl(HttpRequest request, FormBody form, CompositeByteBuf bodyBuf, BodyStream bodyStream, RouteMatch routeResult, DefaultHttpResponse rawResponse, BlockingExecutor blockingExecutor, StaticFiles staticFiles, ServerOptions options) {
 
         this.request = request;
-        this.decoder = decoder;
+        this.form = form;
         this.bodyBuf = bodyBuf;
+        this.bodyStream = bodyStream;
         this.routeResult = routeResult;
+        this.blockingExecutor = blockingExecutor;
+        this.staticFiles = staticFiles;
+        this.options = options;
 
         this.response = new ServerResponseImpl(rawResponse);
+        HttpHeaders routeHeaders = routeResult.headers();
+        if (routeHeaders != null) {
+            rawResponse.headers().add(routeHeaders);
+        }
     }
 
-    private HashMap<String, HttpData> formData = new HashMap<>();
-
     private AttributeMap attributeMap = new DefaultAttributeMap();
 
-    private Map<String, io.netty.handler.codec.http.multipart.HttpData> form() {
-        try {
-            while (decoder.hasNext()) {
-                InterfaceHttpData httpData = decoder.next();
-                switch (httpData.getHttpDataType()) {
-                    case Attribute:
-                        Attribute attribute = (Attribute) httpData;
-                        formData.put(httpData.getName(), attribute);
-                        break;
-                    case FileUpload:
-                        formData.put(httpData.getName(), (FileUpload) httpData);
-                }
-            }
-        } catch (HttpPostRequestDecoder.EndOfDataDecoderException e) {
-        }
-        return formData;
-    }
-
     @Override
     public Value path(String key) {
         return () -> routeResult.param(key);
@@ -102,7 +106,7 @@ public class ServerRequestImpl implements ServerRequest {
     public Value field(String key) {
         return () -> {
             try {
-                HttpData httpData = form().get(key);
+                HttpData httpData = form == null ? null : form.get(key);
                 return httpData == null ? null : httpData.getString();
             } catch (IOException e) {
                 log.error(e);
@@ -118,7 +122,7 @@ public class ServerRequestImpl implements ServerRequest {
 
     @Override
     public RequestBody part(String key) {
-        HttpData httpData = form().get(key);
+        HttpData httpData = form == null ? null : form.get(key);
         if (httpData instanceof FileUpload)
             return new UploadFileRequestBody((FileUpload) httpData);
         else {
@@ -126,6 +130,26 @@ public class ServerRequestImpl implements ServerRequest {
         }
     }
 
+    @Override
+    public UploadedPart upload(String key) {
+        HttpData httpData = form == null ? null : form.get(key);
+        return httpData instanceof FileUpload ? new UploadedFilePart((FileUpload) httpData) : null;
+    }
+
+    @Override
+    public List<UploadedPart> uploads(String key) {
+        if (form == null) {
+            return Collections.emptyList();
+        }
+        List<UploadedPart> uploads = new ArrayList<>();
+        for (HttpData httpData : form.getAll(key)) {
+            if (httpData instanceof FileUpload) {
+                uploads.add(new UploadedFilePart((FileUpload) httpData));
+            }
+        }
+        return uploads;
+    }
+
     @Override
     public String uri() {
         return request.uri();
@@ -136,8 +160,26 @@ public class ServerRequestImpl implements ServerRequest {
         return request.method().toString();
     }
 
+    @Override
+    public BodyStream bodyStream() {
+        return bodyStream;
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return routeResult.target().isBlocking();
+    }
+
     @Override
     public <T> T body(Class<T> clz) {
+        return body(ObjectConvert.readerFor(clz));
+    }
+
+    @Override
+    public <T> T body(ObjectReader reader) {
+        if (bodyBuf == null) {
+            return null;
+        }
         String contentType = request.headers().getAsString(HttpHeaderNames.CONTENT_TYPE.toString());
         MediaType mediaType = contentType == null ? null : MediaType.parse(contentType);
         String tt;
@@ -149,17 +191,37 @@ public class ServerRequestImpl implements ServerRequest {
             tt = mediaType.type();
             charset = mediaType.charset() ==null ? CharsetUtil.UTF_8 : mediaType.charset();
         }
-        String body = bodyBuf.toString(charset);
         switch (tt) {
             case "text":
-                return ObjectConvert.convert(body, clz);
+                return ObjectConvert.fromText(reader, bodyBuf.toString(charset));
             case "application":
             case "json":
             default:
-                return ObjectConvert.fromJson(body, clz);
+                return readJson(charset, reader);
         }
     }
 
+    /**
+     * parses from the body buffer without building a String of it first.
+     */
+    private <T> T readJson(Charset charset, ObjectReader reader) {
+        if (!UNICODE.contains(charset)) {
+            return ObjectConvert.fromJson(reader, new InputStreamReader(new ByteBufInputStream(bodyBuf.duplicate()), charset));
+        }
+        if (bodyBuf.hasArray()) {
+            return ObjectConvert.fromJson(reader, bodyBuf.array(), bodyBuf.arrayOffset() + bodyBuf.readerIndex(),
+                    bodyBuf.readableBytes());
+        }
+        if (bodyBuf.nioBufferCount() == 1) {
+            ByteBuffer nio = bodyBuf.nioBuffer();
+            if (nio.hasArray()) {
+                return ObjectConvert.fromJson(reader, nio.array(), nio.arrayOffset() + nio.position(), nio.remaining());
+            }
+        }
+        // direct or multi component buffers are streamed, jackson only copies into its own recycled buffer
+        return ObjectConvert.fromJson(reader, new ByteBufInputStream(bodyBuf.duplicate()));
+    }
+
     @Override
     public Map<String, String> queryMap() {
         return routeResult.queryParams().keySet().stream()
@@ -203,33 +265,89 @@ public class ServerRequestImpl implements ServerRequest {
         return () -> request.headers().get(key);
     }
 
+    private Map<String, String> cookies;
+
+    @Override
+    public Value cookie(String name) {
+        return () -> cookies().get(name);
+    }
+
+    private Map<String, String> cookies() {
+        if (cookies == null) {
+            String cookieString = request.headers().get(COOKIE);
+            if (cookieString == null) {
+                cookies = Collections.emptyMap();
+            } else {
+                Set<Cookie> decoded = ServerCookieDecoder.STRICT.decode(cookieString);
+                cookies = new HashMap<>(decoded.size() * 2);
+                for (Cookie cookie : decoded) {
+                    // the first one wins, it is the one with the most specific path
+                    cookies.putIfAbsent(cookie.name(), cookie.value());
+                }
+            }
+        }
+        return cookies;
+    }
+
     public void destroy() {
         if (bodyBuf != null) {
             bodyBuf.release();
         }
-        if (decoder != null) {
-            decoder.destroy();
+        Object body = response.body();
+        if (body instanceof ByteBuf && !bodyWritten) {
+            // never made it to the channel, e.g. the request failed
+            ((ByteBuf) body).release();
+        }
+        if (form != null) {
+            form.destroy();
+        }
+        if (lookup != null) {
+            // never sent
+            FileCache.Entry entry = lookup.getNow();
+            if (entry != null) {
+                entry.release();
+            }
+            lookup = null;
+        }
+    }
+
+    /**
+     * starts looking up a File body, so the response finds it ready and nothing waits on the disk.
+     *
+     * @return done once it is looked up, null if the body is no file
+     */
+    Future<FileCache.Entry> lookupFile(ChannelHandlerContext ctx) {
+        Object body = response.body();
+        if (!(body instanceof File)) {
+            return null;
         }
+        lookedUp = (File) body;
+        lookup = staticFiles.lookup(ctx, request, lookedUp);
+        return lookup;
     }
 
     public void handleResponse(ChannelHandlerContext ctx) {
         // Build the response object.
         try {
 
-            String contentType = response.header(HttpHeaderNames.CONTENT_TYPE.toString());
-            MediaType mediaType = contentType == null ? null : MediaType.parse(contentType);
-            String tt = mediaType == null ? "json" : mediaType.type();
-            switch (tt) {
-                case "application":
-                case "json":
+            String contentType = response.rawResponse.headers().get(CONTENT_TYPE);
+            ResponseEncoder encoder = routeResult.encoder(contentType);
+            if (handleStream(encoder, contentType, ctx)) {
+                return;
+            }
+            if (response.body() instanceof File) {
+                // a file is sent as it is, whatever the route would encode
+                writeFileResponse((File) response.body(), ctx);
+                return;
+            }
+            switch (encoder.kind) {
+                case JSON:
                     handleJson(ctx);
                     break;
-                case "text":
-                    handleText(mediaType.charset(), ctx);
+                case TEXT:
+                    handleText(encoder.charset, ctx);
                     break;
-                case "audio":
-                case "video":
-                case "image":
+                case FILE:
                 default:
                     handleFile(ctx);
             }
@@ -241,14 +359,60 @@ public class ServerRequestImpl implements ServerRequest {
 
     }
 
+    /**
+     * InputStream, Iterator, Stream and Publisher bodies are written chunk by chunk as the channel drains.
+     * InputStreams are read on the blocking executor's reading threads; iterators and streams are pulled on the event
+     * loop, so they should not block for long.
+     */
+    private boolean handleStream(ResponseEncoder encoder, String contentType, ChannelHandlerContext ctx) {
+        Object body = response.body();
+        int chunkSize = options.streamChunkSize();
+        ChunkedInput<ByteBuf> input;
+        if (body instanceof InputStream) {
+            input = new StreamChunkedInput(ctx, blockingExecutor.readers(), (InputStream) body, chunkSize);
+        } else if (body instanceof Iterator) {
+            input = new IteratorChunkedInput((Iterator<?>) body, null, StreamFormat.of(encoder, contentType), chunkSize);
+        } else if (body instanceof Stream) {
+            Stream<?> stream = (Stream<?>) body;
+            input = new IteratorChunkedInput(stream.iterator(), stream, StreamFormat.of(encoder, contentType), chunkSize);
+        } else if (body instanceof Publisher) {
+            PublisherChunkedInput subscriber = new PublisherChunkedInput(ctx, StreamFormat.of(encoder, contentType), chunkSize);
+            ((Publisher<Object>) body).subscribe(subscriber);
+            input = subscriber;
+        } else {
+            return false;
+        }
+        if (contentType == null && encoder.kind == ResponseEncoder.Kind.JSON && !(body instanceof InputStream)) {
+            response.rawResponse.headers().set(CONTENT_TYPE, JSON_TYPE);
+        }
+        writeStream(input, ctx);
+        return true;
+    }
+
     private void handleText(Charset charset, ChannelHandlerContext ctx) throws IOException {
         writeResponse(Unpooled.wrappedBuffer(response.body().toString().getBytes(charset)), ctx);
     }
 
     private void handleJson(ChannelHandlerContext ctx) throws IOException {
-        byte[] json = ObjectConvert.toJson(response.body());
-        response.setHeader(CONTENT_TYPE.toString(), ContentType.JSON);
-        writeResponse(Unpooled.wrappedBuffer(json), ctx);
+        Route route = routeResult.target();
+        ByteBuf json = ctx.alloc().buffer(route.getResponseSizeHint());
+        try {
+            Object body = response.body();
+            ObjectWriter writer = route.getResponseWriter(body);
+            if (writer == null) {
+                ObjectConvert.toJson(body, new ByteBufOutputStream(json));
+            } else {
+                ObjectConvert.toJson(writer, body, new ByteBufOutputStream(json));
+            }
+        } catch (RuntimeException e) {
+            json.release();
+            throw e;
+        }
+        route.updateResponseSizeHint(json.readableBytes());
+        if (!response.rawResponse.headers().contains(CONTENT_TYPE)) {
+            response.rawResponse.headers().set(CONTENT_TYPE, JSON_TYPE);
+        }
+        writeResponse(json, ctx);
     }
 
     private void handleFile(ChannelHandlerContext ctx) throws Exception {
@@ -257,158 +421,102 @@ public class ServerRequestImpl implements ServerRequest {
             File file = (File) body;
             writeFileResponse(file, ctx);
         } else if (body instanceof byte[]) {
+            // wrapped, not copied: the body belongs to the response once it is set
             byte[] bytes = (byte[]) body;
-            writeResponse(Unpooled.copiedBuffer(bytes), ctx);
+            writeResponse(Unpooled.wrappedBuffer(bytes), ctx);
         } else if (body instanceof ByteBuf) {
-            writeResponse(Unpooled.copiedBuffer((ByteBuf) body), ctx);
+            // the controller's reference goes to the write, which releases it
+            bodyWritten = true;
+            writeResponse((ByteBuf) body, ctx);
         } else if (body instanceof ByteBuffer) {
-            writeResponse(Unpooled.copiedBuffer((ByteBuffer) body), ctx);
+            // heap, direct and mapped buffers are all wrapped in place
+            writeResponse(Unpooled.wrappedBuffer((ByteBuffer) body), ctx);
         } else {
             throw H.rte("unknown file object type:" + body.getClass().getCanonicalName());
         }
     }
 
-    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
-    private static final String HTTP_DATE_GMT_TIMEZONE = "GMT";
-
-    private static void sendNotModified(ChannelHandlerContext ctx) {
-        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, NOT_MODIFIED);
-        setDateHeader(response);
-
-        // Close the connection as soon as the error message is sent.
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-    }
-
-    private static void setDateHeader(FullHttpResponse response) {
-        SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-        dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-
-        Calendar time = new GregorianCalendar();
-        response.headers().set(DATE, dateFormatter.format(time.getTime()));
-    }
-
-    private static void setDateAndCacheHeaders(HttpResponse response, File fileToCache) {
-        SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-        dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-
-        // Date header
-        Calendar time = new GregorianCalendar();
-        response.headers().set(DATE, dateFormatter.format(time.getTime()));
-
-        // Add cache headers
-        time.add(Calendar.SECOND, HTTP_CACHE_SECONDS);
-        response.headers().set(EXPIRES, dateFormatter.format(time.getTime()));
-        response.headers().set(CACHE_CONTROL, "private, max-age=" + HTTP_CACHE_SECONDS);
-        response.headers().set(
-                LAST_MODIFIED, dateFormatter.format(new Date(fileToCache.lastModified())));
-    }
-
-    private void writeFileResponse(File file, ChannelHandlerContext ctx) throws ParseException, IOException {
-        String ifModifiedSince = request.headers().getAsString(IF_MODIFIED_SINCE);
-        if (ifModifiedSince != null && !ifModifiedSince.isEmpty()) {
-            SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-            Date ifModifiedSinceDate = dateFormatter.parse(ifModifiedSince);
-
-            // Only compare up to the second because the datetime format we send to the client
-            // does not have milliseconds
-            long ifModifiedSinceDateSeconds = ifModifiedSinceDate.getTime() / 1000;
-            long fileLastModifiedSeconds = file.lastModified() / 1000;
-            if (ifModifiedSinceDateSeconds == fileLastModifiedSeconds) {
-                sendNotModified(ctx);
-                return;
+    private void writeFileResponse(File file, ChannelHandlerContext ctx) throws Exception {
+        FileCache.Entry entry;
+        if (lookup != null && lookedUp == file) {
+            Future<FileCache.Entry> done = lookup;
+            lookup = null;
+            if (done.cause() instanceof Exception) {
+                throw (Exception) done.cause();
             }
-        }
-        RandomAccessFile raf;
-        try {
-            raf = new RandomAccessFile(file, "r");
-        } catch (FileNotFoundException ignore) {
-            sendError(ctx, NOT_FOUND);
-            return;
-        }
-        long fileLength = raf.length();
-
-        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
-        HttpUtil.setContentLength(response, fileLength);
-        setDateAndCacheHeaders(response, file);
-        if (HttpUtil.isKeepAlive(request)) {
-            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-        }
-
-        // Write the initial line and the header.
-        ctx.write(response);
-
-        // Write the content.
-        ChannelFuture sendFileFuture;
-        ChannelFuture lastContentFuture;
-        if (ctx.pipeline().get(SslHandler.class) == null) {
-            sendFileFuture =
-                    ctx.write(new DefaultFileRegion(raf.getChannel(), 0, fileLength), ctx.newProgressivePromise());
-            // Write the end marker.
-            lastContentFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            entry = done.getNow();
         } else {
-            sendFileFuture =
-                    ctx.writeAndFlush(new HttpChunkedInput(new ChunkedFile(raf, 0, fileLength, 8192)),
-                            ctx.newProgressivePromise());
-            // HttpChunkedInput will write the end marker (LastHttpContent) for us.
-            lastContentFuture = sendFileFuture;
-        }
-
-        sendFileFuture.addListener(new ChannelProgressiveFutureListener() {
-            @Override
-            public void operationProgressed(ChannelProgressiveFuture future, long progress, long total) {
-                if (total < 0) { // total unknown
-                    log.debug(future.channel() + " Transfer progress: " + progress);
-                } else {
-                    log.debug(future.channel() + " Transfer progress: " + progress + " / " + total);
-                }
-            }
-
-            @Override
-            public void operationComplete(ChannelProgressiveFuture future) {
-                log.debug(future.channel() + " Transfer complete.");
-            }
-        });
-
-        // Decide whether to close the connection or not.
-        if (!HttpUtil.isKeepAlive(request)) {
-            // Close the connection when the whole content is written out.
-            lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+            // the body was set after the controller returned, e.g. by an aop
+            entry = staticFiles.lookup(request, file);
         }
+        staticFiles.send(ctx, request, response.rawResponse, entry);
+    }
 
+    boolean isKeepAlive() {
+        return HttpUtil.isKeepAlive(request);
     }
 
     private void writeResponse(ByteBuf buffer, ChannelHandlerContext ctx) {
 
         boolean keepAlive = HttpUtil.isKeepAlive(request);
         HttpHeaders headersWriting = response.rawResponse.headers();
+        headersWriting.setInt(CONTENT_LENGTH, buffer.readableBytes());
+        headersWriting.set(DATE, HttpDates.now());
         if (keepAlive) {
-            headersWriting.setInt(CONTENT_LENGTH, buffer.readableBytes());
             headersWriting.set(CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-        }
-
-        // Encode the cookie.
-        String cookieString = this.request.headers().getAsString(COOKIE);
-        if (cookieString != null) {
-            Set<Cookie> cookies = ServerCookieDecoder.STRICT.decode(cookieString);
-            if (!cookies.isEmpty()) {
-                // Reset the cookies if necessary.
-                for (Cookie cookie : cookies) {
-                    headersWriting.add(SET_COOKIE, ServerCookieEncoder.STRICT.encode(cookie));
-                }
-            }
+        } else {
+            headersWriting.set(CONNECTION, HttpHeaderValues.CLOSE);
         }
 
         ctx.write(response.rawResponse);
-        ctx.write(buffer);
-        ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        // as http content, a bare buffer would bypass the http/2 codec
+        ChannelFuture lastContentFuture = ctx.writeAndFlush(new DefaultLastHttpContent(buffer));
         if (!keepAlive) {
             // If keep-alive is off, close the connection once the content is fully written.
-            ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            lastContentFuture.addListener(ChannelFutureListener.CLOSE);
         }
     }
 
+    private void writeStream(ChunkedInput<ByteBuf> input, ChannelHandlerContext ctx) {
+        // http/1.0 has no chunked encoding, the end of the body is the end of the connection
+        boolean chunked = !request.protocolVersion().equals(HttpVersion.HTTP_1_0);
+        boolean keepAlive = chunked && HttpUtil.isKeepAlive(request);
+        HttpHeaders headersWriting = response.rawResponse.headers();
+        headersWriting.remove(CONTENT_LENGTH);
+        headersWriting.set(DATE, HttpDates.now());
+        headersWriting.set(CONNECTION, keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+        if (chunked) {
+            HttpUtil.setTransferEncodingChunked(response.rawResponse, true);
+        }
+
+        ctx.write(response.rawResponse);
+        ctx.writeAndFlush(new HttpStreamInput(input)).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                // the head is out already, all that can be done is cutting the body short.
+                // on http/2 that is the stream's reset, the other streams carry on
+                log.warn("streaming response failed", future.cause());
+                if (ctx.pipeline().get(Http2ResponseWriter.class) == null) {
+                    future.channel().close();
+                }
+            } else if (!keepAlive) {
+                future.channel().close();
+            }
+        });
+    }
+
     void handleError(ChannelHandlerContext ctx, Throwable e, Object message) {
-        log.error(e);
+        handleError(ctx, INTERNAL_SERVER_ERROR, e, message);
+    }
+
+    /**
+     * @param status 500, or 400 for a param the request is missing or got wrong
+     */
+    void handleError(ChannelHandlerContext ctx, HttpResponseStatus status, Throwable e, Object message) {
+        if (status == BAD_REQUEST) {
+            log.debug(e);
+        } else {
+            log.error(e);
+        }
         String errMessage;
         if (message == null) {
             errMessage = "Failure: " + e.getMessage() + "\r\n";
@@ -418,19 +526,16 @@ public class ServerRequestImpl implements ServerRequest {
             errMessage = new String(ObjectConvert.toJson(message), CharsetUtil.UTF_8);
         }
         FullHttpResponse response = new DefaultFullHttpResponse(
-                HTTP_1_1, INTERNAL_SERVER_ERROR, Unpooled.copiedBuffer(errMessage, CharsetUtil.UTF_8));
-        response.headers().set(CONTENT_TYPE, "text/plain; charset=UTF-8");
-
-        // Close the connection as soon as the error message is sent.
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-    }
-
-    private static void sendError(ChannelHandlerContext ctx, HttpResponseStatus status) {
-        FullHttpResponse response = new DefaultFullHttpResponse(
-                HTTP_1_1, status, Unpooled.copiedBuffer("Failure: " + status + "\r\n", CharsetUtil.UTF_8));
-        response.headers().set(CONTENT_TYPE, "text/plain; charset=UTF-8");
-
-        // Close the connection as soon as the error message is sent.
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                HTTP_1_1, status, Unpooled.copiedBuffer(errMessage, CharsetUtil.UTF_8));
+        response.headers().set(CONTENT_TYPE, TEXT_TYPE);
+        response.headers().set(DATE, HttpDates.now());
+        HttpUtil.setContentLength(response, response.content().readableBytes());
+        if (HttpUtil.isKeepAlive(request)) {
+            ctx.writeAndFlush(response);
+        } else {
+            // Close the connection as soon as the error message is sent.
+            response.headers().set(CONNECTION, HttpHeaderValues.CLOSE);
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
     }
 }
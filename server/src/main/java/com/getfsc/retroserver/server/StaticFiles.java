@@ -0,0 +1,368 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.*;
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午10:20
+ * <p>
+ * File response bodies: precompressed siblings, strong etags, If-None-Match/If-Modified-Since,
+ * and a single Range (with If-Range). A request for several ranges gets the whole file, which
+ * http allows. Bodies come from the {@link FileCache}, cached bytes as they are, bigger files as
+ * a FileRegion of the shared channel, or where a FileRegion can't go (tls, http/2), in chunks read
+ * by a small pool of file reading threads. A file the cache has to look at on the disk is looked up
+ * on those threads too, before its response is sent ({@link #lookup}).
+ */
+public class StaticFiles {
+
+    private static final int HTTP_CACHE_SECONDS = 315360000;
+    private static final AsciiString CACHE_PRIVATE = new AsciiString("private, max-age=" + HTTP_CACHE_SECONDS);
+
+    private final FileCache cache;
+    private final boolean precompressed;
+    private final int chunkSize;
+    private final ThreadPoolExecutor readers;
+
+    StaticFiles(ServerOptions options) {
+        this.cache = new FileCache(options);
+        this.precompressed = options.precompressedFiles();
+        this.chunkSize = options.fileChunkSize();
+        int threads = Math.max(1, options.fileReadThreads());
+        // a response has at most one read queued, the queue is bounded by the open downloads
+        this.readers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new DefaultThreadFactory("retro-file", true));
+        this.readers.allowCoreThreadTimeOut(true);
+    }
+
+    public FileCache cache() {
+        return cache;
+    }
+
+    /**
+     * looks up the entry a request gets for a file, a precompressed sibling if it accepts one. a cache
+     * hit is returned right away, a miss is stat'ed, opened and read on the file reading threads.
+     *
+     * @return completed on the channel's event loop with the entry retained for the caller, or with null
+     * if the file is missing
+     */
+    Future<FileCache.Entry> lookup(ChannelHandlerContext ctx, HttpRequest request, File file) {
+        String acceptEncoding = precompressed ? request.headers().get(ACCEPT_ENCODING) : null;
+        try {
+            FileCache.Entry entry = lookup(acceptEncoding, file, true);
+            if (entry != FileCache.UNKNOWN) {
+                return ctx.executor().newSucceededFuture(entry);
+            }
+        } catch (IOException e) {
+            return ctx.executor().newFailedFuture(e);
+        }
+        Promise<FileCache.Entry> promise = ctx.executor().newPromise();
+        try {
+            readers.execute(() -> {
+                try {
+                    promise.setSuccess(lookup(acceptEncoding, file, false));
+                } catch (Throwable e) {
+                    promise.setFailure(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shut down
+            promise.setFailure(e);
+        }
+        return promise;
+    }
+
+    /**
+     * {@link #lookup(ChannelHandlerContext, HttpRequest, File)} on the calling thread, which may wait on
+     * the disk.
+     */
+    FileCache.Entry lookup(HttpRequest request, File file) throws IOException {
+        return lookup(precompressed ? request.headers().get(ACCEPT_ENCODING) : null, file, false);
+    }
+
+    private FileCache.Entry lookup(String acceptEncoding, File file, boolean cachedOnly) throws IOException {
+        FileCache.Entry entry;
+        if (accepts(acceptEncoding, "br")
+                && (entry = cache.get(new File(file.getPath() + ".br"), "br", cachedOnly)) != null) {
+            return entry;
+        }
+        if (accepts(acceptEncoding, "gzip")
+                && (entry = cache.get(new File(file.getPath() + ".gz"), "gzip", cachedOnly)) != null) {
+            return entry;
+        }
+        return cache.get(file, null, cachedOnly);
+    }
+
+    /**
+     * @param response head to send, with the headers the route and the controller set
+     * @param entry    what {@link #lookup} found, null for a missing file. it is released
+     */
+    void send(ChannelHandlerContext ctx, HttpRequest request, HttpResponse response, FileCache.Entry entry) {
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (entry == null) {
+            HttpServerHandler.sendError(ctx, NOT_FOUND, keepAlive);
+            return;
+        }
+        String encoding = entry.coding;
+        try {
+            HttpHeaders headers = response.headers();
+            headers.set(DATE, HttpDates.now());
+            headers.set(EXPIRES, HttpDates.format(System.currentTimeMillis() + HTTP_CACHE_SECONDS * 1000L));
+            headers.set(CACHE_CONTROL, CACHE_PRIVATE);
+            headers.set(LAST_MODIFIED, HttpDates.format(entry.lastModified));
+            headers.set(ETAG, entry.etag);
+            headers.set(ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            headers.set(CONNECTION, keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+            if (encoding != null) {
+                headers.set(CONTENT_ENCODING, encoding);
+                headers.add(VARY, ACCEPT_ENCODING);
+            }
+
+            if (notModified(request, entry)) {
+                sendNotModified(ctx, headers, keepAlive);
+                return;
+            }
+
+            long offset = 0;
+            long count = entry.length;
+            String range = request.headers().get(RANGE);
+            if (range != null && request.method().equals(HttpMethod.GET) && ifRange(request, entry)) {
+                long[] bounds = parseRange(range, entry.length);
+                if (bounds == UNSATISFIABLE) {
+                    sendUnsatisfiable(ctx, entry.length, keepAlive);
+                    return;
+                }
+                if (bounds != null) {
+                    offset = bounds[0];
+                    count = bounds[1] - bounds[0] + 1;
+                    response.setStatus(PARTIAL_CONTENT);
+                    headers.set(CONTENT_RANGE, "bytes " + bounds[0] + '-' + bounds[1] + '/' + entry.length);
+                }
+            }
+            HttpUtil.setContentLength(response, count);
+
+            boolean region = entry.content == null
+                    && ctx.pipeline().get(SslHandler.class) == null
+                    && ctx.pipeline().get(Http2ConnectionHandler.class) == null;
+            if (encoding == null && (region || offset != 0 || count != entry.length)) {
+                // a FileRegion can't be encoded, and a part of the compressed file is a part of nothing
+                ResponseCompressor.leaveAlone(ctx.pipeline(), response);
+            }
+
+            ctx.write(response);
+            ChannelFuture lastContentFuture;
+            if (entry.content != null) {
+                lastContentFuture = ctx.writeAndFlush(new DefaultLastHttpContent(entry.slice(offset, count)));
+            } else if (region) {
+                ctx.write(entry.region(offset, count));
+                lastContentFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            } else {
+                lastContentFuture = ctx.writeAndFlush(new HttpStreamInput(
+                        new FileChunkedInput(ctx, readers, entry.retain(), offset, count, chunkSize)));
+            }
+            if (!keepAlive) {
+                lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    void close() {
+        readers.shutdown();
+        cache.clear();
+    }
+
+    /**
+     * If-None-Match decides when present, If-Modified-Since only without it.
+     */
+    private static boolean notModified(HttpRequest request, FileCache.Entry entry) {
+        String ifNoneMatch = request.headers().get(IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, entry.etag);
+        }
+        String ifModifiedSince = request.headers().get(IF_MODIFIED_SINCE);
+        if (ifModifiedSince == null || ifModifiedSince.isEmpty()) {
+            return false;
+        }
+        long since = HttpDates.parse(ifModifiedSince);
+        // the dates sent have no milliseconds
+        return since != -1 && entry.lastModified / 1000 <= since / 1000;
+    }
+
+    /**
+     * weak comparison of an If-None-Match list, as the spec asks for GET and HEAD.
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * a Range only applies while the If-Range validator still matches, strong comparison for etags.
+     */
+    private static boolean ifRange(HttpRequest request, FileCache.Entry entry) {
+        String ifRange = request.headers().get(IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(entry.etag);
+        }
+        long date = HttpDates.parse(ifRange);
+        return date != -1 && date / 1000 == entry.lastModified / 1000;
+    }
+
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    /**
+     * @return first and last byte of a single range, null to send the whole file, or {@link #UNSATISFIABLE}
+     */
+    private static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        int dash = range.indexOf('-', 6);
+        if (dash < 0) {
+            return null;
+        }
+        String first = range.substring(6, dash).trim();
+        String last = range.substring(dash + 1).trim();
+        long start;
+        long end;
+        try {
+            if (first.isEmpty()) {
+                // suffix: the last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return UNSATISFIABLE;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (end < start) {
+                    // an invalid range is ignored, not refused
+                    return null;
+                }
+                end = Math.min(end, length - 1);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (start < 0) {
+            return null;
+        }
+        if (start >= length) {
+            return UNSATISFIABLE;
+        }
+        return new long[]{start, end};
+    }
+
+    private static void sendNotModified(ChannelHandlerContext ctx, HttpHeaders headers, boolean keepAlive) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, NOT_MODIFIED);
+        response.headers().set(headers);
+        response.headers().remove(CONTENT_TYPE);
+        response.headers().remove(CONTENT_ENCODING);
+        response.headers().remove(CONTENT_LENGTH);
+        ChannelFuture future = ctx.writeAndFlush(response);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private static void sendUnsatisfiable(ChannelHandlerContext ctx, long length, boolean keepAlive) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, REQUESTED_RANGE_NOT_SATISFIABLE);
+        response.headers().set(DATE, HttpDates.now());
+        response.headers().set(CONTENT_RANGE, "bytes */" + length);
+        response.headers().setInt(CONTENT_LENGTH, 0);
+        response.headers().set(CONNECTION, keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+        ChannelFuture future = ctx.writeAndFlush(response);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * whether an Accept-Encoding header allows a coding, q=0 counts as refused. the coding named outright
+     * decides over {@code *}, wherever they stand in the list.
+     */
+    private static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean any = false;
+        for (String part : acceptEncoding.split(",")) {
+            int semi = part.indexOf(';');
+            String name = (semi < 0 ? part : part.substring(0, semi)).trim();
+            boolean allowed = semi < 0 || qvalue(part.substring(semi + 1)) > 0;
+            if (name.equalsIgnoreCase(coding)) {
+                return allowed;
+            }
+            if (name.equals("*")) {
+                any = allowed;
+            }
+        }
+        return any;
+    }
+
+    /**
+     * the q of a coding's parameters, 1 without one. one that doesn't parse refuses the coding.
+     */
+    private static double qvalue(String params) {
+        for (String param : params.split(";")) {
+            param = param.replace(" ", "");
+            if (param.regionMatches(true, 0, "q=", 0, 2)) {
+                try {
+                    return Double.parseDouble(param.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,142 @@
+package com.getfsc.retroserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 27/10/18
+ * Time: 下午6:20
+ * <p>
+ * An InputStream response body. Chunks are read on {@link BlockingExecutor#readers()}, one chunk ahead
+ * of the writer, since a stream may block on a disk or another server and the event loop must not wait
+ * on it. {@link ChunkedWriteHandler} (or {@link Http2ResponseWriter}, per stream) is resumed once a chunk
+ * is ready. The stream is closed with the input, by the thread reading it.
+ */
+class StreamChunkedInput implements ChunkedInput<ByteBuf> {
+
+    private final ChannelHandlerContext ctx;
+    private final Executor readers;
+    private final InputStream in;
+    private final int chunkSize;
+    // all below is only touched on the event loop
+    private ByteBuf ready;
+    private Throwable error;
+    private boolean reading;
+    private boolean eof;
+    private boolean closed;
+    private long progress;
+
+    StreamChunkedInput(ChannelHandlerContext ctx, Executor readers, InputStream in, int chunkSize) {
+        this.ctx = ctx;
+        this.readers = readers;
+        this.in = in;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return eof && ready == null;
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (ready != null) {
+            ready.release();
+            ready = null;
+        }
+        // a read still running closes the stream when it is done with it
+        if (!reading) {
+            in.close();
+        }
+    }
+
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (error != null) {
+            Throwable e = error;
+            throw e instanceof Exception ? (Exception) e : new RuntimeException(e);
+        }
+        ByteBuf buf = ready;
+        if (buf != null) {
+            ready = null;
+            progress += buf.readableBytes();
+        }
+        if (!reading && !eof) {
+            read(allocator);
+        }
+        return buf;
+    }
+
+    private void read(ByteBufAllocator allocator) {
+        ByteBuf buf = allocator.buffer(chunkSize);
+        reading = true;
+        try {
+            readers.execute(() -> {
+                Throwable failure = null;
+                int read = 0;
+                try {
+                    read = buf.writeBytes(in, chunkSize);
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                Throwable cause = failure;
+                boolean end = read < 0;
+                ctx.executor().execute(() -> readDone(buf, end, cause));
+            });
+        } catch (RejectedExecutionException e) {
+            reading = false;
+            buf.release();
+            error = e;
+        }
+    }
+
+    private void readDone(ByteBuf buf, boolean end, Throwable cause) {
+        reading = false;
+        if (closed) {
+            buf.release();
+            try {
+                in.close();
+            } catch (Exception e) {
+                // nothing left to do with it
+            }
+            return;
+        }
+        if (cause != null) {
+            buf.release();
+            error = cause;
+        } else if (end || !buf.isReadable()) {
+            buf.release();
+            eof = end;
+        } else {
+            ready = buf;
+        }
+        HttpStreamInput.resumeTransfer(ctx);
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+}
@@ -0,0 +1,90 @@
+package com.getfsc.retroserver.server;
+
+import com.getfsc.retroserver.ObjectConvert;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午8:20
+ * <p>
+ * How the items of a streamed body are framed: one json array, one json document per line,
+ * or the bytes of each item as they are.
+ */
+enum StreamFormat {
+
+    JSON_ARRAY {
+        @Override
+        void open(ByteBuf out) {
+            out.writeByte('[');
+        }
+
+        @Override
+        void item(Object item, boolean first, ByteBuf out) {
+            if (!first) {
+                out.writeByte(',');
+            }
+            ObjectConvert.toJson(item, new ByteBufOutputStream(out));
+        }
+
+        @Override
+        void close(ByteBuf out) {
+            out.writeByte(']');
+        }
+    },
+
+    NDJSON {
+        @Override
+        void item(Object item, boolean first, ByteBuf out) {
+            ObjectConvert.toJson(item, new ByteBufOutputStream(out));
+            out.writeByte('\n');
+        }
+    },
+
+    RAW {
+        @Override
+        void item(Object item, boolean first, ByteBuf out) {
+            if (item instanceof byte[]) {
+                out.writeBytes((byte[]) item);
+            } else if (item instanceof ByteBuffer) {
+                out.writeBytes(((ByteBuffer) item).duplicate());
+            } else if (item instanceof ByteBuf) {
+                try {
+                    out.writeBytes((ByteBuf) item);
+                } finally {
+                    ReferenceCountUtil.release(item);
+                }
+            } else {
+                out.writeBytes(String.valueOf(item).getBytes(CharsetUtil.UTF_8));
+            }
+        }
+    };
+
+    void open(ByteBuf out) {
+    }
+
+    abstract void item(Object item, boolean first, ByteBuf out);
+
+    void close(ByteBuf out) {
+    }
+
+    /**
+     * ndjson for the json-per-line content types, an array for other json, raw bytes for the rest.
+     */
+    static StreamFormat of(ResponseEncoder encoder, String contentType) {
+        if (encoder.kind != ResponseEncoder.Kind.JSON) {
+            return RAW;
+        }
+        if (contentType != null && (contentType.contains("ndjson") || contentType.contains("json-seq")
+                || contentType.contains("stream+json"))) {
+            return NDJSON;
+        }
+        return JSON_ARRAY;
+    }
+}
@@ -0,0 +1,22 @@
+package com.getfsc.retroserver.server;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 26/10/18
+ * Time: 下午3:05
+ */
+public enum Transport {
+    /**
+     * java nio, works everywhere.
+     */
+    NIO,
+    /**
+     * linux native epoll, allows several acceptors bound to the same port with SO_REUSEPORT.
+     */
+    EPOLL,
+    /**
+     * epoll when the native library can be loaded, otherwise nio.
+     */
+    AUTO
+}
@@ -0,0 +1,62 @@
+package com.getfsc.retroserver.server;
+
+import com.getfsc.retroserver.http.UploadedPart;
+import io.netty.handler.codec.http.multipart.FileUpload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 27/10/18
+ * Time: 上午12:30
+ */
+class UploadedFilePart implements UploadedPart {
+    private final FileUpload fileUpload;
+
+    UploadedFilePart(FileUpload fileUpload) {
+        this.fileUpload = fileUpload;
+    }
+
+    @Override
+    public String name() {
+        return fileUpload.getName();
+    }
+
+    @Override
+    public String filename() {
+        return fileUpload.getFilename();
+    }
+
+    @Override
+    public String contentType() {
+        return fileUpload.getContentType();
+    }
+
+    @Override
+    public long size() {
+        return fileUpload.length();
+    }
+
+    @Override
+    public boolean inMemory() {
+        return fileUpload.isInMemory();
+    }
+
+    @Override
+    public File moveTo(File destination) throws IOException {
+        // an existing file is replaced, as a rename would do
+        Files.deleteIfExists(destination.toPath());
+        if (!fileUpload.renameTo(destination)) {
+            throw new IOException("failed to move " + fileUpload.getFilename() + " to " + destination);
+        }
+        return destination;
+    }
+
+    @Override
+    public String toString() {
+        return fileUpload.getFilename();
+    }
+}
@@ -0,0 +1,81 @@
+package com.getfsc.retroserver.session;
+
+import com.getfsc.retroserver.http.Session;
+
+import java.util.Map;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 27/10/18
+ * Time: 上午10:15
+ * <p>
+ * The session of a request that came without one. Reading it finds nothing, only the first write
+ * creates the real session in the provider, so stateless requests don't leave a session behind.
+ * Only the request's thread touches it.
+ */
+class LazySession implements Session {
+
+    private final SessionProvider provider;
+    private Session session;
+    private String id;
+
+    LazySession(SessionProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * the session created by a write, null while there was none.
+     */
+    Session created() {
+        return session;
+    }
+
+    private Session session() {
+        if (session == null) {
+            session = id == null ? provider.newSession() : provider.newSession(id);
+            id = session.id();
+        }
+        return session;
+    }
+
+    @Override
+    public <T> T get(String key) {
+        return session == null ? null : session.get(key);
+    }
+
+    @Override
+    public <T> void set(String key, T value) {
+        session().set(key, value);
+    }
+
+    /**
+     * the id the session will have, handing it out doesn't create the session.
+     */
+    @Override
+    public String id() {
+        if (id == null) {
+            id = provider.newId();
+        }
+        return id;
+    }
+
+    @Override
+    public void remove(String key) {
+        if (session != null) {
+            session.remove(key);
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, Object> map) {
+        if (!map.isEmpty()) {
+            session().putAll(map);
+        }
+    }
+
+    @Override
+    public boolean has(String key) {
+        return session != null && session.has(key);
+    }
+}
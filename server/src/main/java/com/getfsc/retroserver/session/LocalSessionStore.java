@@ -0,0 +1,65 @@
+package com.getfsc.retroserver.session;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 27/10/18
+ * Time: 下午2:30
+ * <p>
+ * {@link SessionStore} in the process, standing in for a remote one: several servers of one jvm
+ * given the same store behave as nodes sharing sessions behind a non-sticky balancer. Sessions are
+ * kept as the json they were written as, so they go through the same conversion as remotely.
+ */
+public class LocalSessionStore implements SessionStore {
+
+    private final ConcurrentHashMap<String, Stored> sessions = new ConcurrentHashMap<>();
+    private volatile long nextSweep;
+
+    @Override
+    public byte[] read(String id) {
+        Stored stored = sessions.get(id);
+        if (stored == null) {
+            return null;
+        }
+        if (stored.expires <= System.currentTimeMillis()) {
+            sessions.remove(id, stored);
+            return null;
+        }
+        return stored.json;
+    }
+
+    @Override
+    public void write(Map<String, byte[]> batch, long timeoutMillis) {
+        long now = System.currentTimeMillis();
+        long expires = timeoutMillis > 0 ? now + timeoutMillis : Long.MAX_VALUE;
+        for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+            if (entry.getValue() == null) {
+                sessions.remove(entry.getKey());
+            } else {
+                sessions.put(entry.getKey(), new Stored(entry.getValue(), expires));
+            }
+        }
+        if (timeoutMillis > 0 && now >= nextSweep) {
+            // sessions nobody reads again go at most once per timeout
+            nextSweep = now + timeoutMillis;
+            sessions.values().removeIf(stored -> stored.expires <= now);
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private static final class Stored {
+        final byte[] json;
+        final long expires;
+
+        Stored(byte[] json, long expires) {
+            this.json = json;
+            this.expires = expires;
+        }
+    }
+}
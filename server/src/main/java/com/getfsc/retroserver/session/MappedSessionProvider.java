@@ -0,0 +1,611 @@
+package com.getfsc.retroserver.session;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.getfsc.retroserver.ObjectConvert;
+import com.getfsc.retroserver.http.ServerRequest;
+import com.getfsc.retroserver.http.Session;
+import com.getfsc.retroserver.util.H;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 27/10/18
+ * Time: 上午11:40
+ * <p>
+ * Sessions kept off the heap in a memory mapped append log, so they survive a restart. A session
+ * the request changed is appended whole as a json record when it is flushed, the previous record
+ * of the id becomes garbage.
+ * The only thing on the heap is the index, an open addressing table of record offsets that
+ * compares ids in the mapped file, two int arrays however many sessions there are.
+ * <p>
+ * Once the log is three quarters full it is compacted on a thread of its own, requests don't wait on
+ * it: the live, unexpired records are copied into a new file twice their size, with an index of its
+ * own, and forced to the disk. Then, under the lock again, the records appended meanwhile are copied
+ * after them, the new file replaces the log by a rename and the old one is unmapped. Until the rename
+ * succeeded the log and its index are left as they are. Appends that outrun the compaction grow the
+ * log in place. On startup the log is replayed to rebuild the index; it stops at the first record
+ * with a bad length or crc, which is where a crash cut the last write short, and that tail is wiped.
+ * <p>
+ * Every load reads its own copy of a session, two concurrent requests of one session each write
+ * what they saw, the last one wins. Values come back as json types, as the request body does.
+ * Records reach the disk with the page cache, a process crash loses nothing, a power cut may lose
+ * the writes the kernel didn't flush yet.
+ */
+public class MappedSessionProvider extends SessionProvider implements Closeable {
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(MappedSessionProvider.class);
+    private static final ObjectReader MAP_READER = ObjectConvert.readerFor(Map.class);
+
+    private static final int MAGIC = 0x52534553;
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int MIN_CAPACITY = 1 << 20;
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE & ~4095;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // record: length, crc of the rest, type, expiry in epoch millis, id length, id, json of the data
+    private static final int LENGTH = 0;
+    private static final int CRC = 4;
+    private static final int TYPE = 8;
+    private static final int EXPIRES = 9;
+    private static final int ID_LENGTH = 17;
+    private static final int ID = 19;
+
+    private final File file;
+    private final long timeoutMillis;
+    private final ExecutorService compactor =
+            Executors.newSingleThreadExecutor(new DefaultThreadFactory("retro-session-log", true));
+    private Index index = new Index();
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private int tail;
+    private int compactAt;
+    private boolean compacting;
+    private boolean closed;
+    // mappings replaced by growing while a compaction reads them, unmapped once it is done
+    private final List<MappedByteBuffer> retired = new ArrayList<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+
+    /**
+     * opens the log, or creates it, and replays what is in it.
+     *
+     * @param timeout a session not written or loaded for this long expires, 0 for never
+     */
+    public MappedSessionProvider(File file, long timeout, TimeUnit unit) throws IOException {
+        this.file = file;
+        this.timeoutMillis = unit.toMillis(timeout);
+        Files.deleteIfExists(compactFile());
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = channel.size();
+        if (size > MAX_CAPACITY) {
+            throw new IOException(file + " is too big for a session log");
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, MIN_CAPACITY));
+        if (size < HEADER) {
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(4, VERSION);
+            tail = HEADER;
+        } else if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a session log");
+        } else {
+            recover();
+        }
+        compactAt = mapped.capacity() / 4 * 3;
+    }
+
+    @Override
+    public Session load(ServerRequest req, String value) {
+        if (value == null) {
+            return null;
+        }
+        byte[] id = value.getBytes(CharsetUtil.UTF_8);
+        int hash = hash(id);
+        byte[] data;
+        synchronized (this) {
+            int slot = index.find(mapped, id, hash);
+            if (slot < 0) {
+                misses.increment();
+                return null;
+            }
+            int offset = index.offsets[slot];
+            long now = System.currentTimeMillis();
+            long expires = mapped.getLong(offset + EXPIRES);
+            if (expires <= now) {
+                append(DELETE, id, hash, 0, null);
+                misses.increment();
+                return null;
+            }
+            int length = mapped.getInt(offset + LENGTH);
+            data = new byte[length - ID - id.length];
+            ByteBuffer record = mapped.duplicate();
+            record.position(offset + ID + id.length);
+            record.get(data);
+            if (timeoutMillis > 0 && expires - now < timeoutMillis / 2) {
+                // sliding expiry, rewritten once per half timeout instead of on every load
+                append(PUT, id, hash, now + timeoutMillis, data);
+            }
+        }
+        hits.increment();
+        Map<String, Object> map = ObjectConvert.fromJson(MAP_READER, data, 0, data.length);
+        TrackedSession session = new TrackedSession(value, map, false);
+        return session;
+    }
+
+    /**
+     * the session is written when it is flushed, replacing a stored one of the same id.
+     */
+    @Override
+    public Session newSession(String id) {
+        return new TrackedSession(id, null, true);
+    }
+
+    public void invalidate(String value) {
+        byte[] id = value.getBytes(CharsetUtil.UTF_8);
+        int hash = hash(id);
+        synchronized (this) {
+            if (index.find(mapped, id, hash) >= 0) {
+                append(DELETE, id, hash, 0, null);
+            }
+        }
+    }
+
+    @Override
+    public void flush(Session session) {
+        Map<String, Object> changes = session instanceof TrackedSession ? ((TrackedSession) session).takeChanges() : null;
+        if (changes == null) {
+            return;
+        }
+        byte[] data = ObjectConvert.toJson(changes);
+        byte[] id = session.id().getBytes(CharsetUtil.UTF_8);
+        long expires = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        synchronized (this) {
+            append(PUT, id, hash(id), expires, data);
+        }
+    }
+
+    public synchronized int size() {
+        return index.size;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long compactions() {
+        return compactions.sum();
+    }
+
+    /**
+     * bytes of the log in use, live records and garbage.
+     */
+    public synchronized long logSize() {
+        return tail;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            // a running compaction gives up
+            closed = true;
+            mapped.force();
+            channel.close();
+        }
+        compactor.shutdown();
+    }
+
+    private void append(byte type, byte[] id, int hash, long expires, byte[] data) {
+        if (id.length > Short.MAX_VALUE) {
+            throw H.rte("session id too long");
+        }
+        int length = ID + id.length + (data == null ? 0 : data.length);
+        if (mapped.capacity() - tail < length) {
+            grow(length);
+        }
+        int offset = tail;
+        ByteBuffer record = mapped.duplicate();
+        record.position(offset + TYPE);
+        record.put(type);
+        record.putLong(expires);
+        record.putShort((short) id.length);
+        record.put(id);
+        if (data != null) {
+            record.put(data);
+        }
+        mapped.putInt(offset + CRC, crc(mapped, offset, length));
+        // the length goes last, a record without it is no record
+        mapped.putInt(offset + LENGTH, length);
+        tail += length;
+
+        int slot = index.find(mapped, id, hash);
+        if (type == PUT) {
+            index.put(slot, hash, offset);
+        } else if (slot >= 0) {
+            index.remove(slot);
+        }
+        if (tail > compactAt && !compacting && !closed) {
+            startCompaction();
+        }
+    }
+
+    /**
+     * maps more of the file, for appends the compaction didn't make room for in time.
+     */
+    private void grow(int incoming) {
+        long capacity = mapped.capacity();
+        while (capacity - tail < incoming && capacity < MAX_CAPACITY) {
+            capacity = Math.min(capacity * 2, MAX_CAPACITY);
+        }
+        if (capacity - tail < incoming) {
+            throw H.rte("session log " + file + " is full");
+        }
+        MappedByteBuffer grown;
+        try {
+            grown = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw H.rte(e);
+        }
+        if (compacting) {
+            retired.add(mapped);
+        } else {
+            unmap(mapped);
+        }
+        mapped = grown;
+    }
+
+    /**
+     * hands the records there are now to the compactor thread, it only reads them: a record is never
+     * changed once appended, and a mapping it reads is not unmapped before it is done.
+     */
+    private void startCompaction() {
+        compacting = true;
+        MappedByteBuffer source = mapped;
+        int[] offsets = index.offsets.clone();
+        int[] hashes = index.hashes.clone();
+        int from = tail;
+        try {
+            compactor.execute(() -> compact(source, offsets, hashes, from));
+        } catch (RejectedExecutionException e) {
+            compacting = false;
+        }
+    }
+
+    /**
+     * copies the live records of the snapshot into a new log with room for twice them, then swaps it in
+     * with the records appended since the snapshot.
+     *
+     * @param from the tail when the snapshot was taken
+     */
+    private void compact(MappedByteBuffer source, int[] offsets, int[] hashes, int from) {
+        long now = System.currentTimeMillis();
+        long live = HEADER;
+        for (int offset : offsets) {
+            if (offset != 0 && source.getLong(offset + EXPIRES) > now) {
+                live += source.getInt(offset + LENGTH);
+            }
+        }
+        long capacity = MIN_CAPACITY;
+        while (capacity < live * 2 && capacity < MAX_CAPACITY) {
+            capacity *= 2;
+        }
+        capacity = Math.min(capacity, MAX_CAPACITY);
+
+        Path compacted = compactFile();
+        FileChannel target = null;
+        MappedByteBuffer copy = null;
+        boolean swapped = false;
+        try {
+            if (capacity < live) {
+                throw new IOException("session log " + file + " is full");
+            }
+            Files.deleteIfExists(compacted);
+            target = FileChannel.open(compacted, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            copy = target.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            copy.putInt(0, MAGIC);
+            copy.putInt(4, VERSION);
+            Index copied = new Index();
+            int position = HEADER;
+            for (int i = 0; i < offsets.length; i++) {
+                int offset = offsets[i];
+                if (offset == 0 || source.getLong(offset + EXPIRES) <= now) {
+                    continue;
+                }
+                int length = source.getInt(offset + LENGTH);
+                ByteBuffer record = source.duplicate();
+                record.limit(offset + length).position(offset);
+                copy.position(position);
+                copy.put(record);
+                copied.put(-1 - copied.free(hashes[i]), hashes[i], position);
+                position += length;
+            }
+            // on the disk before it replaces the log, and outside the lock
+            copy.force();
+
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                int appended = tail - from;
+                if (appended > copy.capacity() - position) {
+                    throw new IOException("more was appended to " + file + " than the compacted log has room for");
+                }
+                ByteBuffer records = mapped.duplicate();
+                records.limit(tail).position(from);
+                copy.position(position);
+                copy.put(records);
+                for (int offset = position; offset < position + appended; offset += copy.getInt(offset + LENGTH)) {
+                    apply(copied, copy, offset);
+                }
+                Files.move(compacted, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                swapped = true;
+                FileChannel replaced = channel;
+                // every other access to the mapping is under the lock, nothing reads the old one any more
+                unmap(mapped);
+                channel = target;
+                mapped = copy;
+                index = copied;
+                tail = position + appended;
+                compactAt = mapped.capacity() / 4 * 3;
+                compactions.increment();
+                try {
+                    replaced.close();
+                } catch (IOException e) {
+                    log.debug("failed to close the old session log", e);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("failed to compact session log {}", file, e);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+                for (MappedByteBuffer buffer : retired) {
+                    unmap(buffer);
+                }
+                retired.clear();
+                if (!swapped) {
+                    // tried again once half the room left is used
+                    compactAt = tail + (mapped.capacity() - tail) / 2;
+                }
+            }
+            if (!swapped) {
+                unmap(copy);
+                closeQuietly(target);
+                try {
+                    Files.deleteIfExists(compacted);
+                } catch (IOException e) {
+                    log.debug("failed to delete {}", compacted, e);
+                }
+            }
+        }
+    }
+
+    private void recover() {
+        int offset = HEADER;
+        int capacity = mapped.capacity();
+        int records = 0;
+        while (offset <= capacity - ID) {
+            int length = mapped.getInt(offset + LENGTH);
+            if (length == 0) {
+                break;
+            }
+            int idLength = length >= ID && length <= capacity - offset ? mapped.getShort(offset + ID_LENGTH) : -1;
+            byte type = mapped.get(offset + TYPE);
+            if (idLength < 0 || ID + idLength > length || (type != PUT && type != DELETE)
+                    || mapped.getInt(offset + CRC) != crc(mapped, offset, length)) {
+                log.warn("session log {} is damaged at {}, dropping the rest", file, offset);
+                for (int i = offset; i < capacity; i++) {
+                    mapped.put(i, (byte) 0);
+                }
+                break;
+            }
+            apply(index, mapped, offset);
+            offset += length;
+            records++;
+        }
+        tail = offset;
+        log.info("session log {}: {} sessions from {} records", file, index.size, records);
+    }
+
+    /**
+     * indexes a record that is already in the log, as it is replayed.
+     */
+    private static void apply(Index index, ByteBuffer log, int offset) {
+        byte[] id = new byte[log.getShort(offset + ID_LENGTH)];
+        ByteBuffer record = log.duplicate();
+        record.position(offset + ID);
+        record.get(id);
+        int hash = hash(id);
+        int slot = index.find(log, id, hash);
+        if (log.get(offset + TYPE) == PUT) {
+            index.put(slot, hash, offset);
+        } else if (slot >= 0) {
+            index.remove(slot);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("failed to close a session log", e);
+            }
+        }
+    }
+
+    /**
+     * drops a mapping now rather than when the buffer is collected, which may be long after: until then
+     * it holds on to its pages and, replaced by a rename, to the disk space of the old log.
+     * on a jvm that won't let netty free it, it is left to the collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (buffer != null) {
+            PlatformDependent.freeDirectBuffer(buffer);
+        }
+    }
+
+    private Path compactFile() {
+        return new File(file.getPath() + ".compact").toPath();
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer record = buffer.duplicate();
+        record.limit(offset + length).position(offset + TYPE);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private static int hash(byte[] id) {
+        int h = 0;
+        for (byte b : id) {
+            h = 31 * h + b;
+        }
+        return h;
+    }
+
+    /**
+     * linear probing from the id's hash to its record offset, the ids themselves stay in the mapped.
+     * an offset of 0 is a free slot, the header makes it no record's.
+     */
+    private static final class Index {
+        int[] offsets = new int[1024];
+        int[] hashes = new int[1024];
+        int size;
+
+        /**
+         * @return the slot of the id, or -1 - the free slot it would go to
+         */
+        int find(ByteBuffer buffer, byte[] id, int hash) {
+            int mask = offsets.length - 1;
+            for (int i = home(hash, mask); ; i = (i + 1) & mask) {
+                int offset = offsets[i];
+                if (offset == 0) {
+                    return -1 - i;
+                }
+                if (hashes[i] == hash && sameId(buffer, offset, id)) {
+                    return i;
+                }
+            }
+        }
+
+        /**
+         * first free slot from the hash's home, for ids known not to be in the table.
+         */
+        int free(int hash) {
+            int mask = offsets.length - 1;
+            int i = home(hash, mask);
+            while (offsets[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        /**
+         * @param slot as {@link #find} returned it
+         */
+        void put(int slot, int hash, int offset) {
+            if (slot >= 0) {
+                offsets[slot] = offset;
+                return;
+            }
+            slot = -1 - slot;
+            offsets[slot] = offset;
+            hashes[slot] = hash;
+            if (++size * 2 > offsets.length) {
+                resize(offsets.length * 2);
+            }
+        }
+
+        /**
+         * backward shift deletion, later entries of the probe sequence move up so no tombstones are needed.
+         */
+        void remove(int slot) {
+            int mask = offsets.length - 1;
+            int i = slot;
+            for (int j = (i + 1) & mask; offsets[j] != 0; j = (j + 1) & mask) {
+                int home = home(hashes[j], mask);
+                // j stays unless its home lies outside (i, j], cyclically
+                boolean stays = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (!stays) {
+                    offsets[i] = offsets[j];
+                    hashes[i] = hashes[j];
+                    i = j;
+                }
+            }
+            offsets[i] = 0;
+            size--;
+        }
+
+        void clear(int capacity) {
+            offsets = new int[capacity];
+            hashes = new int[capacity];
+            size = 0;
+        }
+
+        private void resize(int capacity) {
+            int[] oldOffsets = offsets;
+            int[] oldHashes = hashes;
+            offsets = new int[capacity];
+            hashes = new int[capacity];
+            for (int i = 0; i < oldOffsets.length; i++) {
+                if (oldOffsets[i] != 0) {
+                    int slot = free(oldHashes[i]);
+                    offsets[slot] = oldOffsets[i];
+                    hashes[slot] = oldHashes[i];
+                }
+            }
+        }
+
+        private static int home(int hash, int mask) {
+            return ((hash ^ (hash >>> 16)) * 0x9E3779B9) & mask;
+        }
+
+        private static boolean sameId(ByteBuffer buffer, int offset, byte[] id) {
+            if (buffer.getShort(offset + ID_LENGTH) != id.length) {
+                return false;
+            }
+            for (int i = 0; i < id.length; i++) {
+                if (buffer.get(offset + ID + i) != id[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
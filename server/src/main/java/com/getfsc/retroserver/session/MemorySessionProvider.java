@@ -2,54 +2,240 @@ package com.getfsc.retroserver.session;
 
 import com.getfsc.retroserver.http.ServerRequest;
 import com.getfsc.retroserver.http.Session;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by IntelliJ IDEA.
  * User: draco
  * Date: 16/4/13
  * Time: 下午10:28
+ * <p>
+ * Sessions on the heap, bounded and expiring. The ids are spread over shards, each an access
+ * ordered map that drops its least recently used session when full. Every session has one
+ * timeout on a hashed wheel for the earliest of its idle and absolute deadline; using a session
+ * only moves its deadline, the timeout finds out when it fires and is set again for the rest,
+ * so there is neither a cancel per request nor a scan over all sessions.
  */
 public class MemorySessionProvider extends SessionProvider {
 
+    private static final int SHARDS = 16;
 
+    private final Shard[] shards = new Shard[SHARDS];
+    private final long idleNanos;
+    private final long maxAgeNanos;
+    private final HashedWheelTimer wheel;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * 100000 sessions, expiring after 30 idle minutes.
+     */
     public MemorySessionProvider() {
+        this(100_000, 30, 0, TimeUnit.MINUTES);
     }
 
-    @Override
-    public Session newSession() {
-        String id = UUID.randomUUID().toString();
-        return newSession(id);
+    /**
+     * @param maxSessions sessions kept, the least recently used go first beyond it. the bound is per shard,
+     *                    so it is rounded up to a multiple of the shards
+     * @param idleTimeout a session not used for this long expires, 0 for never
+     * @param maxAge a session expires this long after it was created however busy it is, 0 for never
+     */
+    public MemorySessionProvider(int maxSessions, long idleTimeout, long maxAge, TimeUnit unit) {
+        this.idleNanos = unit.toNanos(idleTimeout);
+        this.maxAgeNanos = unit.toNanos(maxAge);
+        int perShard = Math.max(1, (maxSessions + SHARDS - 1) / SHARDS);
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(perShard);
+        }
+        this.wheel = idleNanos > 0 || maxAgeNanos > 0
+                ? new HashedWheelTimer(new DefaultThreadFactory("retro-session", true), 1, TimeUnit.SECONDS, 512)
+                : null;
     }
 
     @Override
     public Session load(ServerRequest req, String value) {
-        Session session = sessions.get(value);
-        if (session != null)
-            req.setObject(Session.class, session);
+        if (value == null) {
+            return null;
+        }
+        Shard shard = shard(value);
+        MemorySession session;
+        synchronized (shard) {
+            session = shard.get(value);
+        }
+        long now = System.nanoTime();
+        if (session == null || session.expired(now)) {
+            misses.increment();
+            return null;
+        }
+        session.accessed = now;
+        hits.increment();
         return session;
     }
 
     @Override
     public Session newSession(String id) {
-        MemorySession session = new MemorySession(id);
-        sessions.put(id, session);
+        MemorySession session = new MemorySession(id, System.nanoTime());
+        Shard shard = shard(id);
+        synchronized (shard) {
+            MemorySession replaced = shard.put(id, session);
+            if (replaced != null) {
+                replaced.cancel();
+            }
+        }
+        if (wheel != null) {
+            session.schedule(session.deadline() - session.created);
+        }
         return session;
     }
 
-    private Map<String, Session> sessions = new ConcurrentHashMap<>();
+    /**
+     * drops a session, e.g. on logout.
+     */
+    public void invalidate(String id) {
+        Shard shard = shard(id);
+        MemorySession session;
+        synchronized (shard) {
+            session = shard.remove(id);
+        }
+        if (session != null) {
+            session.cancel();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * sessions dropped to stay within the maximum.
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long expirations() {
+        return expirations.sum();
+    }
+
+    /**
+     * stops the expiry thread, the sessions stay until the provider is collected.
+     */
+    public void close() {
+        if (wheel != null) {
+            wheel.stop();
+        }
+    }
+
+    private Shard shard(String id) {
+        int h = id.hashCode();
+        return shards[(h ^ (h >>> 16)) & (SHARDS - 1)];
+    }
+
+    private void expire(MemorySession session) {
+        Shard shard = shard(session.id);
+        synchronized (shard) {
+            // unless it was replaced by a new session of the same id
+            if (!shard.remove(session.id, session)) {
+                return;
+            }
+        }
+        expirations.increment();
+    }
+
+    private class Shard extends LinkedHashMap<String, MemorySession> {
+        private static final long serialVersionUID = 1L;
 
-    private static class MemorySession implements Session {
-        private final HashMap<String, Object> data;
-        private String id;
+        private final int maxSessions;
+
+        Shard(int maxSessions) {
+            super(16, 0.75f, true);
+            this.maxSessions = maxSessions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MemorySession> eldest) {
+            if (size() <= maxSessions) {
+                return false;
+            }
+            eldest.getValue().cancel();
+            evictions.increment();
+            return true;
+        }
+    }
 
-        MemorySession(String id) {
+    private class MemorySession implements Session, TimerTask {
+        private final ConcurrentHashMap<String, Object> data = new ConcurrentHashMap<>();
+        private final String id;
+        private final long created;
+        private volatile long accessed;
+        private volatile Timeout timeout;
+
+        MemorySession(String id, long created) {
             this.id = id;
-            this.data = new HashMap<>();
+            this.created = created;
+            this.accessed = created;
+        }
+
+        long deadline() {
+            long deadline = Long.MAX_VALUE;
+            if (idleNanos > 0) {
+                deadline = accessed + idleNanos;
+            }
+            if (maxAgeNanos > 0) {
+                deadline = Math.min(deadline, created + maxAgeNanos);
+            }
+            return deadline;
+        }
+
+        boolean expired(long now) {
+            return wheel != null && deadline() - now <= 0;
+        }
+
+        void schedule(long delayNanos) {
+            timeout = wheel.newTimeout(this, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void cancel() {
+            Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            long left = deadline() - System.nanoTime();
+            if (left <= 0) {
+                expire(this);
+            } else if (!timeout.isCancelled()) {
+                schedule(left);
+            }
         }
 
         @Override
@@ -59,7 +245,11 @@ public class MemorySessionProvider extends SessionProvider {
 
         @Override
         public <T> void set(String key, T value) {
-            data.put(key, value);
+            if (value == null) {
+                data.remove(key);
+            } else {
+                data.put(key, value);
+            }
         }
 
         @Override
@@ -74,7 +264,9 @@ public class MemorySessionProvider extends SessionProvider {
 
         @Override
         public void putAll(Map<String, Object> map) {
-            data.putAll(map);
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                set(entry.getKey(), entry.getValue());
+            }
         }
 
         @Override
@@ -4,17 +4,11 @@ import com.getfsc.retroserver.aop.AopFactory;
 import com.getfsc.retroserver.aop.AopInterceptor;
 import com.getfsc.retroserver.http.ServerRequest;
 import com.getfsc.retroserver.http.Session;
-import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
-import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
 import io.netty.handler.codec.http.cookie.ServerCookieEncoder;
-import okhttp3.Response;
 
 import javax.inject.Inject;
-import java.util.Optional;
-import java.util.Set;
 
-import static io.netty.handler.codec.http.HttpHeaderNames.COOKIE;
 import static io.netty.handler.codec.http.HttpHeaderNames.SET_COOKIE;
 
 /**
@@ -34,8 +28,6 @@ public class SessionAopFactory implements AopFactory {
         this.sessionProvider = sessionProvider;
     }
 
-    private static final String JSESSIONID = "jsessionid";
-
     @Override
     public String name() {
         return "SESSION";
@@ -43,36 +35,42 @@ public class SessionAopFactory implements AopFactory {
 
     @Override
     public AopInterceptor create() {
-        return new AopInterceptor() {
-            @Override
-            public boolean beforeInvoke(ServerRequest request) {
-                request.setObject(SessionProvider.class, sessionProvider);
-                return true;
-            }
-
-            @Override
-            public void afterInvoke(ServerRequest request) {
-                Session session = (Session) request.getObject(Session.class);
-                if (session != null) {
-                    String cookieString = request.header(COOKIE.toString()).toString();
-                    if (cookieString != null) {
-                        Set<Cookie> cookies = ServerCookieDecoder.STRICT.decode(cookieString);
-                        if (!cookies.isEmpty()) {
-                            Optional<Cookie> cookie = cookies.stream().filter(c -> c.name().equals(JSESSIONID))
-                                    .findFirst();
-                            if (!cookie.isPresent()) {
-                                cookies.add(new DefaultCookie(JSESSIONID, session.id()));
-                                ServerCookieEncoder.STRICT.encode(cookies)
-                                        .stream().forEach(value -> request.response().addHeader(SET_COOKIE.toString(), value));
-                            }
-                        }
-                    }
-                }
-            }
+        return interceptor;
+    }
 
-        };
+    @Override
+    public boolean stateless() {
+        return true;
     }
 
+    private final AopInterceptor interceptor = new AopInterceptor() {
+        @Override
+        public boolean beforeInvoke(ServerRequest request) {
+            request.setObject(SessionProvider.class, sessionProvider);
+            return true;
+        }
+
+        /**
+         * writes the session back, and sets a cookie only for a session created by this request,
+         * a loaded one already has it.
+         */
+        @Override
+        public void afterInvoke(ServerRequest request) {
+            Object attached = request.getObject(Session.class);
+            Session session = attached instanceof LazySession ? ((LazySession) attached).created() : (Session) attached;
+            if (session == null) {
+                return;
+            }
+            sessionProvider.flush(session);
+            if (attached instanceof LazySession) {
+                DefaultCookie cookie = new DefaultCookie(SessionProvider.JSESSIONID, session.id());
+                cookie.setPath("/");
+                cookie.setHttpOnly(true);
+                request.response().addHeader(SET_COOKIE.toString(), ServerCookieEncoder.STRICT.encode(cookie));
+            }
+        }
+    };
+
     @Override
     public Integer priority() {
         return 1000;
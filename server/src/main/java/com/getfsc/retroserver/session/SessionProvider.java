@@ -2,12 +2,8 @@ package com.getfsc.retroserver.session;
 
 import com.getfsc.retroserver.http.ServerRequest;
 import com.getfsc.retroserver.http.Session;
-import io.netty.handler.codec.http.cookie.Cookie;
-import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
 
-import java.util.Set;
-
-import static io.netty.handler.codec.http.HttpHeaderNames.COOKIE;
+import java.util.UUID;
 
 /**
  * Created by IntelliJ IDEA.
@@ -17,38 +13,53 @@ import static io.netty.handler.codec.http.HttpHeaderNames.COOKIE;
  */
 public abstract class SessionProvider {
 
-    private static final String JSESSIONID = "jsessionid";
+    static final String JSESSIONID = "jsessionid";
 
 
+    /**
+     * the session of the request's cookie, or one that is only created once something is written to it.
+     */
     public Session getSession(ServerRequest request) {
         Session session = (Session) request.getObject(Session.class);
         if (session == null) {
-            String cookieString = request.header(COOKIE.toString()).toString();
-            if (cookieString != null) {
-                Set<Cookie> cookies = ServerCookieDecoder.STRICT.decode(cookieString);
-                if (!cookies.isEmpty()) {
-                    for (Cookie cookie : cookies) {
-                        if (cookie.name().equals(JSESSIONID)) {
-                            String value = cookie.value();
-                            session = load(request, value);
-                        }
-                    }
-                }
+            String value = request.cookie(JSESSIONID).asString();
+            if (value != null) {
+                session = load(request, value);
             }
             if (session == null) {
-                session = newSession();
-                request.setObject(Session.class, session);
+                session = new LazySession(this);
             }
+            // attached, so it is flushed with the request
+            request.setObject(Session.class, session);
         }
         return session;
     }
 
+    /**
+     * id of a new session.
+     */
+    public String newId() {
+        return UUID.randomUUID().toString();
+    }
 
-    public abstract Session newSession();
+    public Session newSession() {
+        return newSession(newId());
+    }
 
 
+    /**
+     * the stored session of the id, null if there is none. it is not attached to the request,
+     * the caller does that.
+     */
     public abstract Session load(ServerRequest req, String value);
 
+    /**
+     * writes back what the request changed in the session, called once the controller is done.
+     * providers keeping the sessions themselves have nothing to do.
+     */
+    public void flush(Session session) {
+    }
+
 
     public abstract Session newSession(String sessionId) ;
-}
\ No newline at end of file
+}
@@ -0,0 +1,33 @@
+package com.getfsc.retroserver.session;
+
+import java.util.Map;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 27/10/18
+ * Time: 下午2:20
+ * <p>
+ * Where a {@link StoreSessionProvider} keeps the sessions, typically a remote key value store
+ * shared by all nodes. Sessions are json documents. Calls come from request threads (reads) and
+ * from the provider's writer thread (writes), implementations must be thread safe.
+ * <p>
+ * Reads block the request until the store answers, so routes using the session, or a jwt with a
+ * session provider, must be {@link com.getfsc.retroserver.annotation.Blocking}, or the server
+ * blocking by default. Loading a session on an event loop fails, even when it is near cached, so
+ * a missing annotation shows on the first request rather than under load.
+ */
+public interface SessionStore {
+
+    /**
+     * @return the json of the session, null if the store doesn't have it or it expired
+     */
+    byte[] read(String id);
+
+    /**
+     * writes a batch of sessions, a null value deletes the session.
+     *
+     * @param timeoutMillis how long the store keeps each session after this write, 0 for ever
+     */
+    void write(Map<String, byte[]> sessions, long timeoutMillis);
+}
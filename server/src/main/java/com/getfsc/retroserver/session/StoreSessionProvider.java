@@ -0,0 +1,327 @@
+package com.getfsc.retroserver.session;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.getfsc.retroserver.ObjectConvert;
+import com.getfsc.retroserver.http.ServerRequest;
+import com.getfsc.retroserver.http.Session;
+import com.getfsc.retroserver.util.H;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 27/10/18
+ * Time: 下午2:40
+ * <p>
+ * Sessions kept in a {@link SessionStore} shared by several nodes, so requests of one user can
+ * land on any of them. Three things keep the store off the request path:
+ * <ul>
+ * <li>a near cache of recently used sessions, bounded and only trusted for a short while, since
+ * another node may have changed the session since;</li>
+ * <li>write-behind: a flushed session is queued, a writer thread sends what is queued in batches,
+ * several changes of one session in between are one write;</li>
+ * <li>concurrent loads of one session missing the near cache wait for a single read.</li>
+ * </ul>
+ * A read still blocks the request, routes loading a session must be blocking, see {@link SessionStore}.
+ * Both caches make it eventually consistent across nodes, by the near cache validity plus the write
+ * delay. A node always sees its own writes. The store keeps a session for the timeout after its last
+ * write; a session that is only read is written again once per half timeout to keep it alive.
+ */
+public class StoreSessionProvider extends SessionProvider implements Closeable {
+
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(StoreSessionProvider.class);
+    private static final ObjectReader MAP_READER = ObjectConvert.readerFor(Map.class);
+    private static final Map<String, Object> DELETED = Collections.unmodifiableMap(new HashMap<>());
+    private static final int SHARDS = 16;
+    private static final int MAX_BATCH = 256;
+
+    private final SessionStore store;
+    private final long timeoutMillis;
+    private final long nearCacheMillis;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final ConcurrentHashMap<String, Map<String, Object>> pending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Map<String, Object>>> loading = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService writer;
+
+    private final LongAdder nearHits = new LongAdder();
+    private final LongAdder storeReads = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder writeFailures = new LongAdder();
+
+    /**
+     * sessions expiring after 30 idle minutes, 10000 of them near cached for a second, written within 50ms.
+     */
+    public StoreSessionProvider(SessionStore store) {
+        this(store, 30, TimeUnit.MINUTES, 10_000, 1000, 50);
+    }
+
+    /**
+     * @param timeout          how long the store keeps a session nobody uses, 0 for ever
+     * @param nearCacheSize    sessions kept near, the least recently used go first
+     * @param nearCacheMillis  how long a near cached session is used without reading it again, 0 reads every time
+     * @param writeDelayMillis how long changes are collected before they are written
+     */
+    public StoreSessionProvider(SessionStore store, long timeout, TimeUnit unit, int nearCacheSize,
+                                long nearCacheMillis, long writeDelayMillis) {
+        this.store = store;
+        this.timeoutMillis = unit.toMillis(timeout);
+        this.nearCacheMillis = nearCacheMillis;
+        int perShard = Math.max(1, (nearCacheSize + SHARDS - 1) / SHARDS);
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(perShard);
+        }
+        this.writer = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("retro-session-writer", true));
+        long delay = Math.max(1, writeDelayMillis);
+        this.writer.scheduleWithFixedDelay(() -> {
+            try {
+                writeBehind();
+            } catch (Throwable e) {
+                // an exception would cancel the schedule
+                log.error("session writer failed", e);
+            }
+        }, delay, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Session load(ServerRequest req, String value) {
+        if (value == null) {
+            return null;
+        }
+        if (req != null && !req.isBlocking()) {
+            throw new IllegalStateException("sessions are read from a store, " + req.verb() + " " + req.uri()
+                    + " must be @Blocking");
+        }
+        long now = System.currentTimeMillis();
+        Map<String, Object> data = pending.get(value);
+        if (data == null) {
+            Shard shard = shard(value);
+            Cached cached;
+            synchronized (shard) {
+                cached = shard.get(value);
+                if (cached != null && now - cached.fetched < nearCacheMillis) {
+                    data = cached.data;
+                    keepAlive(value, cached, now);
+                }
+            }
+            if (data != null) {
+                nearHits.increment();
+            } else {
+                data = read(value);
+                synchronized (shard) {
+                    // a flush or invalidate meanwhile is newer than what was read, that stays
+                    if (shard.get(value) == cached) {
+                        // a read of an id seen before keeps when it was last kept alive
+                        Cached refetched = new Cached(data, now, cached == null ? 0 : cached.refreshed);
+                        shard.put(value, refetched);
+                        keepAlive(value, refetched, now);
+                    }
+                }
+            }
+        }
+        if (data == null || data == DELETED) {
+            return null;
+        }
+        TrackedSession session = new TrackedSession(value, data, false);
+        return session;
+    }
+
+    @Override
+    public Session newSession(String id) {
+        return new TrackedSession(id, null, true);
+    }
+
+    @Override
+    public void flush(Session session) {
+        Map<String, Object> changes = session instanceof TrackedSession ? ((TrackedSession) session).takeChanges() : null;
+        if (changes == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        pending.put(session.id(), changes);
+        Shard shard = shard(session.id());
+        synchronized (shard) {
+            shard.put(session.id(), new Cached(changes, now, now));
+        }
+    }
+
+    public void invalidate(String id) {
+        long now = System.currentTimeMillis();
+        pending.put(id, DELETED);
+        Shard shard = shard(id);
+        synchronized (shard) {
+            // not removed, a read running meanwhile must not put the session back
+            shard.put(id, new Cached(DELETED, now, now));
+        }
+    }
+
+    public long nearHits() {
+        return nearHits.sum();
+    }
+
+    public long storeReads() {
+        return storeReads.sum();
+    }
+
+    /**
+     * loads that waited for another one's read of the same session.
+     */
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    public long writes() {
+        return writes.sum();
+    }
+
+    public long writeFailures() {
+        return writeFailures.sum();
+    }
+
+    /**
+     * sessions waiting to be written.
+     */
+    public int pending() {
+        return pending.size();
+    }
+
+    /**
+     * stops the writer, after writing what is still queued.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeBehind();
+    }
+
+    /**
+     * the store's session, one read for all concurrent loads of it.
+     */
+    private Map<String, Object> read(String id) {
+        CompletableFuture<Map<String, Object>> mine = new CompletableFuture<>();
+        CompletableFuture<Map<String, Object>> running = loading.putIfAbsent(id, mine);
+        if (running != null) {
+            coalesced.increment();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw H.rte(e.getCause());
+            }
+        }
+        try {
+            storeReads.increment();
+            byte[] json = store.read(id);
+            Map<String, Object> data = json == null ? DELETED : ObjectConvert.fromJson(MAP_READER, json, 0, json.length);
+            mine.complete(data);
+            return data;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(id, mine);
+        }
+    }
+
+    /**
+     * queues a write of an unchanged session once half its timeout passed since it was last written.
+     * called with the shard locked.
+     */
+    private void keepAlive(String id, Cached cached, long now) {
+        if (timeoutMillis > 0 && cached.data != DELETED && now - cached.refreshed >= timeoutMillis / 2) {
+            cached.refreshed = now;
+            pending.putIfAbsent(id, cached.data);
+        }
+    }
+
+    private void writeBehind() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<String, Map<String, Object>> taken = new HashMap<>();
+        Map<String, byte[]> batch = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> entry : pending.entrySet()) {
+            String id = entry.getKey();
+            Map<String, Object> data = entry.getValue();
+            // a change queued meanwhile stays for the next round
+            if (!pending.remove(id, data)) {
+                continue;
+            }
+            taken.put(id, data);
+            batch.put(id, data == DELETED ? null : ObjectConvert.toJson(data));
+            if (batch.size() >= MAX_BATCH) {
+                write(taken, batch);
+                taken = new HashMap<>();
+                batch = new HashMap<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(taken, batch);
+        }
+    }
+
+    private void write(Map<String, Map<String, Object>> taken, Map<String, byte[]> batch) {
+        try {
+            store.write(batch, timeoutMillis);
+            writes.add(batch.size());
+        } catch (RuntimeException e) {
+            writeFailures.add(batch.size());
+            log.warn("writing {} sessions failed, retrying with the next batch", batch.size(), e);
+            for (Map.Entry<String, Map<String, Object>> entry : taken.entrySet()) {
+                pending.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private Shard shard(String id) {
+        int h = id.hashCode();
+        return shards[(h ^ (h >>> 16)) & (SHARDS - 1)];
+    }
+
+    private static final class Cached {
+        final Map<String, Object> data;
+        final long fetched;
+        long refreshed;
+
+        Cached(Map<String, Object> data, long fetched, long refreshed) {
+            this.data = data;
+            this.fetched = fetched;
+            this.refreshed = refreshed;
+        }
+    }
+
+    private static final class Shard extends LinkedHashMap<String, Cached> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSessions;
+
+        Shard(int maxSessions) {
+            super(16, 0.75f, true);
+            this.maxSessions = maxSessions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > maxSessions;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.getfsc.retroserver.session;
+
+import com.getfsc.retroserver.http.Session;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Created by IntelliJ IDEA.
+ * User: draco
+ * Date: 27/10/18
+ * Time: 下午2:05
+ * <p>
+ * A loaded copy of a stored session that remembers whether it changed, for providers writing
+ * sessions back in {@link SessionProvider#flush}. Null values are not kept, setting one removes the key.
+ */
+class TrackedSession implements Session {
+
+    private final ConcurrentHashMap<String, Object> data = new ConcurrentHashMap<>();
+    private final String id;
+    private volatile boolean dirty;
+
+    /**
+     * @param dirty whether it is to be written even without a change, a new session replacing a stored one
+     */
+    TrackedSession(String id, Map<String, Object> data, boolean dirty) {
+        this.id = id;
+        this.dirty = dirty;
+        if (data != null) {
+            copy(data);
+        }
+    }
+
+    /**
+     * @return a copy of the data if it changed since the last call, null otherwise
+     */
+    Map<String, Object> takeChanges() {
+        if (!dirty) {
+            return null;
+        }
+        dirty = false;
+        return new HashMap<>(data);
+    }
+
+    private void copy(Map<String, Object> map) {
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            if (entry.getValue() == null) {
+                data.remove(entry.getKey());
+            } else {
+                data.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public <T> T get(String key) {
+        return (T) data.get(key);
+    }
+
+    @Override
+    public <T> void set(String key, T value) {
+        if (value == null) {
+            data.remove(key);
+        } else {
+            data.put(key, value);
+        }
+        dirty = true;
+    }
+
+    @Override
+    public String id() {
+        return id;
+    }
+
+    @Override
+    public void remove(String key) {
+        if (data.remove(key) != null) {
+            dirty = true;
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, Object> map) {
+        copy(map);
+        dirty = true;
+    }
+
+    @Override
+    public boolean has(String key) {
+        return data.containsKey(key);
+    }
+}